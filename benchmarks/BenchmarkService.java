@@ -0,0 +1,186 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * The flight service as the benchmarks see it: a {@link Query} on the embedded store, with a
+ * generated Flights table so that no database server is needed.
+ *
+ * @see bench.Service
+ */
+public class BenchmarkService implements bench.Service
+{
+  // every ordered pair of cities has FLIGHTS_PER_ROUTE flights on every day
+  static final int CITIES = 30;
+  static final int DAYS = 7;
+  static final int FLIGHTS_PER_ROUTE = 3;
+
+  private final File dir;
+  private final Query query;
+
+  // what a search from ORIGIN to DESTINATION on DAY offers, handed to every new customer
+  private final Query.Flight[] options;
+  private final int optionCount;
+
+  public BenchmarkService() throws Exception
+  {
+    // close() removes them at the end of the trial; they also go when the fork exits, should it fail before then.
+    // Files are removed in the reverse order they were marked, so the directory is marked first
+    dir = File.createTempFile("flightservice-bench", "");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+
+    File flights = new File(dir, "flights.csv");
+    flights.deleteOnExit();
+    writeFlights(flights);
+
+    Properties props = new Properties();
+    props.setProperty("flightservice.store", "embedded");
+    props.setProperty("flightservice.embedded_flights", flights.getPath());
+    props.setProperty("flightservice.search_cache_size", "0");
+    File config = new File(dir, "dbconn.properties");
+    config.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(config);
+    try {
+      props.store(out, null);
+    } finally {
+      out.close();
+    }
+
+    query = new Query(config.getPath());
+    query.openConnection();
+    query.prepareStatements();
+    query.clearTables();
+
+    Session session = new Session();
+    query.transaction_search(session, ORIGIN, DESTINATION, false, DAY, 10);
+    options = session.bookingOptions;
+    optionCount = session.possibleBookingCount;
+  }
+
+  // one row per flight with the columns of the Flights table; times and prices are random but the same on every run
+  private static void writeFlights(File file) throws IOException
+  {
+    Random random = new Random(42);
+    PrintWriter out = new PrintWriter(file, "UTF-8");
+    try {
+      int fid = 1;
+      for (int day = 1; day <= DAYS; day++) {
+        for (int origin = 0; origin < CITIES; origin++) {
+          for (int dest = 0; dest < CITIES; dest++) {
+            if (origin == dest) {
+              continue;
+            }
+            for (int i = 0; i < FLIGHTS_PER_ROUTE; i++) {
+              // fid, month_id, day_of_month, day_of_week_id, carrier_id, flight_num, origin_city, origin_state,
+              // dest_city, dest_state, departure_delay, taxi_out, arrival_delay, canceled, actual_time, distance,
+              // capacity, price
+              out.println(fid + ",7," + day + "," + ((day % 7) + 1) + ",AS," + fid + ",City " + origin + ",State,City "
+                          + dest + ",State,0,10,0,0," + (60 + random.nextInt(600)) + ",1000,1000,"
+                          + (50 + random.nextInt(950)));
+              fid++;
+            }
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  public String[] tokenize(String command)
+  {
+    return FlightService.tokenize(command);
+  }
+
+  public Object newCommandLine()
+  {
+    return new CommandLine();
+  }
+
+  public int parse(Object commandLine, String command)
+  {
+    return ((CommandLine) commandLine).parse(command).count();
+  }
+
+  public Object newSession()
+  {
+    return new Session();
+  }
+
+  public String execute(Object session, String command)
+  {
+    return FlightService.execute(query, (Session) session, command);
+  }
+
+  public String search(Object session, String originCity, String destinationCity, boolean directFlight,
+                       int dayOfMonth, int numberOfItineraries)
+  {
+    return query.transaction_search((Session) session, originCity, destinationCity, directFlight, dayOfMonth,
+                                    numberOfItineraries);
+  }
+
+  public Object customer(String username, int balance)
+  {
+    query.transaction_createCustomer(username, username, balance);
+    Session session = new Session();
+    session.username = username;
+    session.isLoggedIn = true;
+    session.bookingOptions = options;
+    session.possibleBookingCount = optionCount;
+    return session;
+  }
+
+  public Object flight(boolean twoHop)
+  {
+    if (twoHop) {
+      return new Query.Flight(1, 1, "AS", 24, "Seattle WA", "Chicago IL", 180, 14, 140,
+                              2, 1, "UA", 816, "Chicago IL", "Boston MA", 150, 9, 210);
+    }
+    return new Query.Flight(60454, 1, "AS", 24, "Seattle WA", "Boston MA", 297, 14, 140);
+  }
+
+  public String oneHopString(Object flight)
+  {
+    return ((Query.Flight) flight).oneHopString();
+  }
+
+  public String twoHopString(Object flight)
+  {
+    return ((Query.Flight) flight).twoHopString();
+  }
+
+  public void appendOneHop(Object flight, StringBuilder sb)
+  {
+    ((Query.Flight) flight).appendOneHop(sb);
+  }
+
+  public void appendTwoHop(Object flight, StringBuilder sb)
+  {
+    ((Query.Flight) flight).appendTwoHop(sb);
+  }
+
+  public void clear()
+  {
+    query.clearTables();
+  }
+
+  public void close() throws Exception
+  {
+    try {
+      query.closeConnection();
+    } finally {
+      File[] files = dir.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      dir.delete();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The book, pay and cancel commands end to end, through FlightService.execute, against the
+ * embedded store.
+ *
+ * A customer can only book once per day, canceled reservations included, so every operation
+ * needs a customer of its own. {@link #customer} measures making one on its own; subtract it
+ * from the others to get the cost of the commands. Canceling gives the seats back, so the
+ * flights never fill up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BookingBenchmark
+{
+  private static final int BALANCE = 1000000;
+
+  private long customers = 0;
+
+  private Object newCustomer(ServiceState state)
+  {
+    return state.service.customer("bench" + Thread.currentThread().getId() + "_" + (customers++), BALANCE);
+  }
+
+  // the reservation ID out of "Booked flight(s), reservation ID: [reservationId]\n"
+  private static String book(ServiceState state, Object session)
+  {
+    String response = state.service.execute(session, "book 0");
+    if (!response.startsWith("Booked")) {
+      throw new IllegalStateException(response);
+    }
+    return response.substring(response.lastIndexOf(' ') + 1, response.length() - 1);
+  }
+
+  @Benchmark
+  public Object customer(ServiceState state)
+  {
+    return newCustomer(state);
+  }
+
+  @Benchmark
+  public String bookCancel(ServiceState state)
+  {
+    Object session = newCustomer(state);
+    String reservationId = book(state, session);
+    return state.service.execute(session, "cancel " + reservationId);
+  }
+
+  @Benchmark
+  public String bookPayCancel(ServiceState state)
+  {
+    Object session = newCustomer(state);
+    String reservationId = book(state, session);
+    state.service.execute(session, "pay " + reservationId);
+    return state.service.execute(session, "cancel " + reservationId);
+  }
+}
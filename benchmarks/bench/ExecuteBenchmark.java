@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FlightService.execute up to the point where it hands the command to Query: every command
+ * here is answered without touching the store, because nobody is logged in or the arguments
+ * are wrong, so what is left is parsing the line, picking the command from the dispatch table
+ * and parsing its arguments. Commands further down the table take a few more comparisons.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExecuteBenchmark
+{
+  @Param({ "login user1", "book 0", "reservations", "cancel 1", "quit", "unknown" })
+  public String command;
+
+  private Object session;
+
+  @Setup
+  public void newSession(ServiceState state)
+  {
+    session = state.service.newSession();
+  }
+
+  @Benchmark
+  public String execute(ServiceState state)
+  {
+    return state.service.execute(session, command);
+  }
+}
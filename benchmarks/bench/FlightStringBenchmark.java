@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Flight.oneHopString and Flight.twoHopString, and the appendOneHop and appendTwoHop that
+ * search uses to render every itinerary into the session's buffer. The append benchmarks reuse
+ * one buffer, as a session does, so -prof gc shows what rendering an itinerary leaves behind:
+ * nothing, once the buffer has grown.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlightStringBenchmark
+{
+  private Object oneHop;
+  private Object twoHop;
+  private final StringBuilder buffer = new StringBuilder(1024);
+
+  @Setup
+  public void newFlights(ServiceState state)
+  {
+    oneHop = state.service.flight(false);
+    twoHop = state.service.flight(true);
+  }
+
+  @Benchmark
+  public String oneHopString(ServiceState state)
+  {
+    return state.service.oneHopString(oneHop);
+  }
+
+  @Benchmark
+  public String twoHopString(ServiceState state)
+  {
+    return state.service.twoHopString(twoHop);
+  }
+
+  @Benchmark
+  public StringBuilder appendOneHop(ServiceState state)
+  {
+    buffer.setLength(0);
+    state.service.appendOneHop(oneHop, buffer);
+    return buffer;
+  }
+
+  @Benchmark
+  public StringBuilder appendTwoHop(ServiceState state)
+  {
+    buffer.setLength(0);
+    state.service.appendTwoHop(twoHop, buffer);
+    return buffer;
+  }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Query.transaction_search against the embedded store: finding and sorting the direct and two
+ * hop itineraries, then rendering the response. With many itineraries the rendering dominates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SearchBenchmark
+{
+  @Param({ "true", "false" })
+  public boolean directFlight;
+
+  @Param({ "1", "10", "100" })
+  public int itineraries;
+
+  private Object session;
+
+  @Setup
+  public void newSession(ServiceState state)
+  {
+    session = state.service.newSession();
+  }
+
+  @Benchmark
+  public String search(ServiceState state)
+  {
+    return state.service.search(session, Service.ORIGIN, Service.DESTINATION, directFlight, Service.DAY,
+                                itineraries);
+  }
+}
@@ -0,0 +1,78 @@
+package bench;
+
+/**
+ * What the benchmarks drive. The flight service lives in the default package, which JMH can't
+ * generate code for and named packages can't refer to, so the benchmarks reach it through this
+ * interface and the {@code BenchmarkService} class that implements it next to the service.
+ *
+ * Sessions and flights are handed around as opaque objects for the same reason.
+ */
+public interface Service
+{
+  // the cities and days of the generated flights; every pair of cities is connected every day
+  String ORIGIN = "City 0";
+  String DESTINATION = "City 1";
+  int DAY = 1;
+
+  /**
+   * Opens the service on the embedded store, with a generated Flights table and no search cache.
+   */
+  static Service open() throws Exception
+  {
+    return (Service) Class.forName("BenchmarkService").getDeclaredConstructor().newInstance();
+  }
+
+  String[] tokenize(String command);
+
+  /**
+   * @return a parser for commands, as every session holds one
+   */
+  Object newCommandLine();
+
+  /**
+   * Parses {@code command} with {@code commandLine}, reusing its buffers.
+   *
+   * @return the number of tokens
+   */
+  int parse(Object commandLine, String command);
+
+  /**
+   * @return a session nobody has logged in to
+   */
+  Object newSession();
+
+  String execute(Object session, String command);
+
+  String search(Object session, String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                int numberOfItineraries);
+
+  /**
+   * Creates a customer with {@code balance} and returns a session logged in as them, offering
+   * the itineraries of a search from {@link #ORIGIN} to {@link #DESTINATION} on {@link #DAY}
+   * for booking, as if the customer had just run that search.
+   */
+  Object customer(String username, int balance);
+
+  /**
+   * @return a flight as search lists it, with one leg or two
+   */
+  Object flight(boolean twoHop);
+
+  String oneHopString(Object flight);
+
+  String twoHopString(Object flight);
+
+  /**
+   * Appends the rendering of a one leg flight to {@code sb}, the way search does.
+   */
+  void appendOneHop(Object flight, StringBuilder sb);
+
+  void appendTwoHop(Object flight, StringBuilder sb);
+
+  /**
+   * Drops every customer and reservation and gives every seat back.
+   */
+  void clear();
+
+  void close() throws Exception;
+}
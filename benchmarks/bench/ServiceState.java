@@ -0,0 +1,36 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * One service per fork, shared by every benchmark thread, the way one Query is shared by every
+ * session of a server. Customers and reservations are dropped before every iteration, while no
+ * benchmark thread is running, so they don't pile up over a run.
+ */
+@State(Scope.Benchmark)
+public class ServiceState
+{
+  public Service service;
+
+  @Setup(Level.Trial)
+  public void open() throws Exception
+  {
+    service = Service.open();
+  }
+
+  @Setup(Level.Iteration)
+  public void clear()
+  {
+    service.clear();
+  }
+
+  @TearDown(Level.Trial)
+  public void close() throws Exception
+  {
+    service.close();
+  }
+}
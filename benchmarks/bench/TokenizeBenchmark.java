@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splitting the shapes of command a client sends: FlightService.tokenize, which copies every
+ * token out, and the CommandLine a session parses its commands with, which reuses its buffers
+ * and should allocate nothing.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenizeBenchmark
+{
+  @Param({ "reservations", "pay 17", "create user1 user1 100000", "search \"Seattle WA\" \"Boston MA\" 0 1 10" })
+  public String command;
+
+  private Object commandLine;
+
+  @Setup
+  public void newCommandLine(ServiceState state)
+  {
+    commandLine = state.service.newCommandLine();
+  }
+
+  @Benchmark
+  public String[] tokenize(ServiceState state)
+  {
+    return state.service.tokenize(command);
+  }
+
+  @Benchmark
+  public int parse(ServiceState state)
+  {
+    return state.service.parse(commandLine, command);
+  }
+}
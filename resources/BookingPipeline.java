@@ -0,0 +1,233 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Group commit for bookings. Sessions hand their booking to the pipeline and wait; a single
+ * worker thread collects the bookings that arrive within {@code batchMillis} of the first one,
+ * up to {@code maxBatch}, and gives them to the {@link Handler}, which books them all in one
+ * transaction. Every session then gets back the outcome of its own booking, as if it had booked
+ * on its own.
+ *
+ * The handler decides each booking separately, so a same-day conflict or a full flight only
+ * turns away the booking it concerns. A booking the handler can't decide within the batch,
+ * for instance the second booking by the same user for the same day, is left without an outcome
+ * and goes first in the next batch. If the batch as a whole fails, its bookings are run again one
+ * at a time, so an error caused by one of them doesn't fail the others.
+ *
+ * A session waits at most {@code timeoutMillis} for its outcome. A booking still in the queue by
+ * then is withdrawn; one the worker has already taken may yet be made after its session was told
+ * it failed, so callers should treat a failed booking as a possible change to the reservations.
+ */
+public class BookingPipeline
+{
+  // the outcome of a booking the handler hasn't decided yet; reservation IDs start at 1
+  static final int UNDECIDED = 0;
+
+  // transactions run, each booking a batch; bookings handed to them, counting a deferred one each time it is tried;
+  // bookings moved to the next batch because their batch couldn't decide them; batches that failed as a whole and
+  // were run again one booking at a time; transactions that threw, batches and single bookings alike; and bookings
+  // whose session stopped waiting for the outcome. Each exception is also counted under booking_pipeline.errors by
+  // its SQL error code, or its class when it has none, so a fallback can be told apart from the next
+  private static final Metrics.Counter BATCHES = Metrics.counter("booking_pipeline.batches");
+  private static final Metrics.Counter REQUESTS = Metrics.counter("booking_pipeline.requests");
+  private static final Metrics.Counter DEFERRED = Metrics.counter("booking_pipeline.deferred");
+  private static final Metrics.Counter FALLBACKS = Metrics.counter("booking_pipeline.fallbacks");
+  private static final Metrics.Counter FAILURES = Metrics.counter("booking_pipeline.failures");
+  private static final Metrics.Counter TIMEOUTS = Metrics.counter("booking_pipeline.timeouts");
+
+  /**
+   * One session's booking, waiting for its outcome.
+   */
+  static class Request
+  {
+    final String username;
+    final Query.Flight itinerary;
+
+    // set by the handler once the transaction deciding it has committed: what FlightStore.book would have returned
+    int outcome = UNDECIDED;
+
+    final CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+
+    Request(String username, Query.Flight itinerary) {
+      this.username = username;
+      this.itinerary = itinerary;
+    }
+  }
+
+  /**
+   * Books a batch of requests in one transaction and sets the outcome of each of them.
+   */
+  interface Handler
+  {
+    void book(List<Request> batch) throws Exception;
+  }
+
+  private final long batchNanos;
+  private final int maxBatch;
+  private final long timeoutMillis;
+  private final Handler handler;
+
+  private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+  private final Thread worker;
+  private boolean closed = false;
+
+
+  /**
+   * @param batchMillis how long the worker waits for more bookings after the first one of a batch
+   * @param maxBatch most bookings in one transaction
+   * @param timeoutMillis longest a session waits for the outcome of its booking
+   */
+  public BookingPipeline(long batchMillis, int maxBatch, long timeoutMillis, Handler handler)
+  {
+    this.batchNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, batchMillis));
+    this.maxBatch = Math.max(1, maxBatch);
+    this.timeoutMillis = Math.max(1, timeoutMillis);
+    this.handler = handler;
+    this.worker = new Thread(new Runnable() {
+      public void run() {
+        work();
+      }
+    }, "booking-pipeline");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Books {@code itinerary} for {@code username} in the next batch and waits for the outcome, for
+   * at most the timeout the pipeline was made with.
+   *
+   * @return the reservation ID, or {@link FlightStore#SAME_DAY} or {@link FlightStore#BOOKING_FAILED},
+   *         which after a timeout doesn't rule out the booking being made later
+   */
+  public int book(String username, Query.Flight itinerary)
+  {
+    Request request = new Request(username, itinerary);
+    synchronized (this) {
+      if (closed) {
+        return FlightStore.BOOKING_FAILED;
+      }
+      queue.add(request);
+    }
+    try {
+      return request.done.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return FlightStore.BOOKING_FAILED;
+    } catch (ExecutionException e) {
+      return FlightStore.BOOKING_FAILED;
+    } catch (TimeoutException e) {
+      TIMEOUTS.increment();
+      queue.remove(request);
+      return FlightStore.BOOKING_FAILED;
+    }
+  }
+
+  private void work()
+  {
+    List<Request> batch = new ArrayList<Request>();
+    List<Request> carried = new ArrayList<Request>();
+    while (true) {
+      batch.addAll(carried);
+      carried.clear();
+      try {
+        if (batch.isEmpty()) {
+          Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            synchronized (this) {
+              if (closed && queue.isEmpty()) {
+                return;
+              }
+            }
+            continue;
+          }
+          batch.add(first);
+        }
+        long deadline = System.nanoTime() + batchNanos;
+        while (batch.size() < maxBatch) {
+          long wait = deadline - System.nanoTime();
+          Request next = (wait > 0) ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // nothing interrupts the worker on purpose; book whatever was collected
+        if (batch.isEmpty()) {
+          continue;
+        }
+      }
+
+      run(batch);
+      for (Request request : batch) {
+        if (request.outcome == UNDECIDED) {
+          carried.add(request);
+        } else {
+          request.done.complete(request.outcome);
+        }
+      }
+      DEFERRED.add(carried.size());
+      batch.clear();
+    }
+  }
+
+  private void run(List<Request> batch)
+  {
+    BATCHES.increment();
+    REQUESTS.add(batch.size());
+    try {
+      handler.book(batch);
+      return;
+    } catch (Exception e) {
+      failed(e);
+    }
+
+    // nothing of the batch was committed, so each booking gets a transaction of its own
+    if (batch.size() == 1) {
+      batch.get(0).outcome = FlightStore.BOOKING_FAILED;
+      return;
+    }
+    FALLBACKS.increment();
+    for (Request request : batch) {
+      request.outcome = UNDECIDED;
+      try {
+        handler.book(Collections.singletonList(request));
+      } catch (Exception e) {
+        failed(e);
+      }
+      if (request.outcome == UNDECIDED) {
+        request.outcome = FlightStore.BOOKING_FAILED;
+      }
+    }
+  }
+
+  private static void failed(Exception e)
+  {
+    FAILURES.increment();
+    String cause = (e instanceof SQLException) ? String.valueOf(((SQLException) e).getErrorCode())
+                                               : e.getClass().getSimpleName();
+    Metrics.counter("booking_pipeline.errors." + cause).increment();
+  }
+
+  /**
+   * Books whatever is still waiting, then stops the worker. Bookings handed in afterwards fail.
+   */
+  public void close()
+  {
+    synchronized (this) {
+      closed = true;
+    }
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
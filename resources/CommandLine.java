@@ -0,0 +1,117 @@
+import java.util.Arrays;
+
+/**
+ * One command split into tokens the way FlightService has always split them: a token is either
+ * the text between a pair of double quotes, which may hold spaces, or a run of characters that
+ * aren't whitespace. A quote with no closing quote after it is an ordinary character.
+ *
+ * Parsing records where every token starts and ends in the line instead of copying it out, into
+ * arrays kept from one command to the next, so a session parses its commands without allocating.
+ * A token only becomes a String when a command needs it as one.
+ *
+ * Not thread safe; every session has its own.
+ */
+public class CommandLine
+{
+  private String line = "";
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int count = 0;
+
+  /**
+   * Splits {@code line}, leaving out any spaces and control characters at either end, the way
+   * String.trim does, and forgetting the line parsed before it.
+   */
+  public CommandLine parse(String line)
+  {
+    this.line = line;
+    count = 0;
+
+    int i = 0;
+    int end = line.length();
+    while (i < end && line.charAt(i) <= ' ') {
+      i++;
+    }
+    while (end > i && line.charAt(end - 1) <= ' ') {
+      end--;
+    }
+
+    while (i < end) {
+      char c = line.charAt(i);
+      if (isWhitespace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '"') {
+        int close = line.indexOf('"', i + 1);
+        if (close >= 0 && close < end) {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+      int start = i;
+      while (i < end && !isWhitespace(line.charAt(i))) {
+        i++;
+      }
+      add(start, i);
+    }
+    return this;
+  }
+
+  // what \s matches in a regular expression
+  private static boolean isWhitespace(char c)
+  {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private void add(int start, int end)
+  {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  /**
+   * @return the number of tokens in the line
+   */
+  public int count()
+  {
+    return count;
+  }
+
+  /**
+   * @return true if token {@code i} is exactly {@code word}
+   */
+  public boolean is(int i, String word)
+  {
+    int length = ends[i] - starts[i];
+    return length == word.length() && line.regionMatches(starts[i], word, 0, length);
+  }
+
+  public String token(int i)
+  {
+    return line.substring(starts[i], ends[i]);
+  }
+
+  /**
+   * @throws NumberFormatException if token {@code i} isn't a decimal int, as Integer.parseInt
+   */
+  public int intToken(int i)
+  {
+    return Integer.parseInt(line, starts[i], ends[i], 10);
+  }
+
+  public String[] tokens()
+  {
+    String[] tokens = new String[count];
+    for (int i = 0; i < count; i++) {
+      tokens[i] = token(i);
+    }
+    return tokens;
+  }
+}
@@ -0,0 +1,84 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed set of pre-warmed database connections, each wrapped in whatever state is prepared
+ * on it (usually its prepared statements). A caller takes one for the length of a unit of
+ * work and hands it back afterwards; nothing in it is ever used by two threads at once.
+ */
+public class ConnectionPool<T>
+{
+  private final List<T> all;
+  private final List<T> members;
+  private final BlockingQueue<T> idle;
+  private final long timeoutMillis;
+
+  public ConnectionPool(List<T> connections, long timeoutMillis)
+  {
+    this.members = new CopyOnWriteArrayList<T>(connections);
+    this.all = Collections.unmodifiableList(members);
+    this.idle = new ArrayBlockingQueue<T>(Math.max(1, connections.size()), false, connections);
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Waits for an idle connection.
+   *
+   * @throws SQLException if none comes back within the pool timeout
+   */
+  public T acquire() throws SQLException
+  {
+    try {
+      T connection = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+      if (connection == null) {
+        throw new SQLException("Timed out waiting for a database connection");
+      }
+      return connection;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection", e);
+    }
+  }
+
+  /**
+   * Hands back a connection from {@link #acquire()}. Does nothing if {@code connection} is null,
+   * so it can be called from a finally block whether or not acquire succeeded.
+   */
+  public void release(T connection)
+  {
+    if (connection != null) {
+      idle.offer(connection);
+    }
+  }
+
+  /**
+   * Puts {@code replacement} in the pool, idle, in place of {@code broken}, a connection from
+   * {@link #acquire()} that can't be used any more.
+   */
+  public void replace(T broken, T replacement)
+  {
+    int i = members.indexOf(broken);
+    if (i >= 0) {
+      members.set(i, replacement);
+    }
+    idle.offer(replacement);
+  }
+
+  /**
+   * @return every connection in the pool, idle or not
+   */
+  public List<T> all()
+  {
+    return all;
+  }
+
+  public int size()
+  {
+    return all.size();
+  }
+}
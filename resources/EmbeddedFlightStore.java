@@ -0,0 +1,308 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A {@link FlightStore} that lives entirely in this JVM. The flights are read once, from the
+ * snapshot named by flightservice.flight_snapshot, the dump named by
+ * flightservice.embedded_flights or else the Flights table of the configured database; users,
+ * reservations and seats are kept in memory and are lost when the last store closes. Every
+ * Query in the JVM shares the one store, the way they would share a database.
+ *
+ * Each operation runs under the store's lock, which makes it serializable with respect to every
+ * other one. Usernames and passwords compare the way SQL Server's default collation compares
+ * them: ignoring case and trailing spaces.
+ */
+public class EmbeddedFlightStore implements FlightStore
+{
+  private static EmbeddedFlightStore shared;
+  private static int users = 0;
+
+  /**
+   * A row of the Users table.
+   */
+  private static class Customer
+  {
+    final String password;
+    int balance;
+
+    // in reservation ID order
+    final List<Booking> bookings = new ArrayList<Booking>();
+
+    Customer(String password, int balance) {
+      this.password = password;
+      this.balance = balance;
+    }
+  }
+
+  /**
+   * A row of the Reservations table.
+   */
+  private static class Booking
+  {
+    final Customer customer;
+    final int reservationId;
+    final int dayOfMonth;
+    final int fid;
+    final int fid2;
+    final int price;
+    boolean paid = false;
+    boolean canceled = false;
+
+    Booking(Customer customer, int reservationId, int dayOfMonth, int fid, int fid2, int price) {
+      this.customer = customer;
+      this.reservationId = reservationId;
+      this.dayOfMonth = dayOfMonth;
+      this.fid = fid;
+      this.fid2 = fid2;
+      this.price = price;
+    }
+  }
+
+  // how many reservations a page takes from the store at a time
+  private static final int PAGE_CHUNK = 100;
+
+  private final FlightIndex flights;
+
+  // seats left on the flight in each row of the index, the Capacities table
+  private final int[] seats;
+
+  // normalized username -> customer
+  private final Map<String, Customer> customers = new HashMap<String, Customer>();
+
+  // every reservation made since the last clear, at index reservationId - 1
+  private final List<Booking> bookings = new ArrayList<Booking>();
+
+  private EmbeddedFlightStore(FlightIndex flights)
+  {
+    this.flights = flights;
+    this.seats = new int[flights.size()];
+    resetSeats();
+  }
+
+  /**
+   * Returns the store shared by this JVM, loading the flights the first time it is opened.
+   */
+  public static synchronized EmbeddedFlightStore open(Properties configProps) throws IOException, SQLException
+  {
+    if (shared == null) {
+      shared = new EmbeddedFlightStore(FlightIndex.open(configProps));
+    }
+    users++;
+    return shared;
+  }
+
+  // what SQL Server's case-insensitive, pad-insensitive comparison would treat as equal
+  private static String normalize(String s)
+  {
+    return StringDictionary.fold(s);
+  }
+
+  private void resetSeats()
+  {
+    for (int row = 0; row < seats.length; row++) {
+      seats[row] = flights.capacity(row);
+    }
+  }
+
+  public void prepareStatements() {}
+
+  public synchronized boolean login(String username, String password)
+  {
+    Customer customer = customers.get(normalize(username));
+    return customer != null && customer.password.equals(normalize(password));
+  }
+
+  public synchronized boolean createCustomer(String username, String password, int initAmount)
+  {
+    String key = normalize(username);
+    if (customers.containsKey(key)) {
+      return false;
+    }
+    customers.put(key, new Customer(normalize(password), initAmount));
+    return true;
+  }
+
+  public int search(Query.Flight[] bookingOptions, String originCity, String destCity, boolean directFlight,
+                    int dayOfMonth)
+  {
+    // the flights never change, so searching needs no lock
+    return flights.search(bookingOptions, originCity, destCity, directFlight, dayOfMonth, bookingOptions.length);
+  }
+
+  public synchronized int book(String username, Query.Flight itinerary)
+  {
+    Customer customer = customers.get(normalize(username));
+    if (customer == null) {
+      return BOOKING_FAILED;
+    }
+    // canceled reservations still count, as they do in the CHECK_RESERVATIONS query
+    for (Booking booking : customer.bookings) {
+      if (booking.dayOfMonth == itinerary.dayOfMonth) {
+        return SAME_DAY;
+      }
+    }
+
+    int row = flights.row(itinerary.fid);
+    int row2 = (itinerary.fid2 != 0) ? flights.row(itinerary.fid2) : -1;
+    if (seatsLeft(row) <= 0 || (itinerary.fid2 != 0 && seatsLeft(row2) <= 0)) {
+      return BOOKING_FAILED;
+    }
+    seats[row]--;
+    if (itinerary.fid2 != 0) {
+      seats[row2]--;
+    }
+
+    Booking booking = new Booking(customer, bookings.size() + 1, itinerary.dayOfMonth, itinerary.fid, itinerary.fid2,
+                                  itinerary.price + itinerary.price2);
+    bookings.add(booking);
+    customer.bookings.add(booking);
+    return booking.reservationId;
+  }
+
+  // a flight that isn't in the index has no seats
+  private int seatsLeft(int row)
+  {
+    return (row < 0) ? 0 : seats[row];
+  }
+
+  public synchronized List<Reservation> reservations(String username)
+  {
+    List<Reservation> reservations = new ArrayList<Reservation>();
+    Customer customer = customers.get(normalize(username));
+    if (customer == null) {
+      return reservations;
+    }
+    for (Booking booking : customer.bookings) {
+      if (!booking.canceled) {
+        reservations.add(reservation(booking));
+      }
+    }
+    return reservations;
+  }
+
+  public int reservations(String username, int afterId, int limit, ReservationSink sink) throws IOException
+  {
+    // taken a chunk at a time, and handed over outside the lock, so a slow sink holds up no one else
+    List<Reservation> chunk = new ArrayList<Reservation>(Math.max(0, Math.min(limit, PAGE_CHUNK)));
+    int count = 0;
+    while (count < limit) {
+      int wanted = Math.min(limit - count, PAGE_CHUNK);
+      chunk.clear();
+      nextReservations(username, afterId, wanted, chunk);
+      for (Reservation reservation : chunk) {
+        sink.add(reservation);
+      }
+      count += chunk.size();
+      if (chunk.size() < wanted) {
+        break;
+      }
+      afterId = chunk.get(chunk.size() - 1).reservationId;
+    }
+    return count;
+  }
+
+  // adds up to n of the user's reservations that are not canceled and come after afterId to chunk
+  private synchronized void nextReservations(String username, int afterId, int n, List<Reservation> chunk)
+  {
+    Customer customer = customers.get(normalize(username));
+    if (customer == null) {
+      return;
+    }
+    List<Booking> bookings = customer.bookings;
+    int low = 0;
+    int high = bookings.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (bookings.get(mid).reservationId <= afterId) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    for (int i = low; i < bookings.size() && chunk.size() < n; i++) {
+      Booking booking = bookings.get(i);
+      if (!booking.canceled) {
+        chunk.add(reservation(booking));
+      }
+    }
+  }
+
+  private Reservation reservation(Booking booking)
+  {
+    int first = flights.row(booking.fid);
+    Query.Flight second = null;
+    if (booking.fid2 != 0) {
+      // the second leg shows the price of the first, as CURRENT_RESERVATIONS does
+      second = flights.flight(flights.row(booking.fid2), flights.price(first));
+    }
+    return new Reservation(booking.reservationId, booking.paid, flights.flight(first), second);
+  }
+
+  public synchronized Payment pay(String username, int reservationId)
+  {
+    Customer customer = customers.get(normalize(username));
+    Booking booking = find(customer, reservationId);
+    if (booking == null || booking.paid) {
+      return new Payment(NOT_FOUND, 0, 0);
+    }
+    if (customer.balance < booking.price) {
+      return new Payment(INSUFFICIENT_BALANCE, customer.balance, booking.price);
+    }
+    customer.balance -= booking.price;
+    booking.paid = true;
+    return new Payment(DONE, customer.balance, booking.price);
+  }
+
+  public synchronized int[] cancel(String username, int reservationId)
+  {
+    Customer customer = customers.get(normalize(username));
+    Booking booking = find(customer, reservationId);
+    if (booking == null || booking.canceled) {
+      return null;
+    }
+    booking.canceled = true;
+    if (booking.paid) {
+      booking.paid = false;
+      customer.balance += booking.price;
+    }
+    seats[flights.row(booking.fid)]++;
+    if (booking.fid2 != 0) {
+      seats[flights.row(booking.fid2)]++;
+    }
+    return new int[] { booking.fid, booking.fid2 };
+  }
+
+  // the reservation with this ID, if it belongs to the customer
+  private Booking find(Customer customer, int reservationId)
+  {
+    if (customer == null || reservationId < 1 || reservationId > bookings.size()) {
+      return null;
+    }
+    Booking booking = bookings.get(reservationId - 1);
+    return (booking.customer == customer) ? booking : null;
+  }
+
+  public synchronized void clear()
+  {
+    customers.clear();
+    bookings.clear();
+    resetSeats();
+  }
+
+  /**
+   * Stays open until every Query that opened it has closed it.
+   */
+  public void close()
+  {
+    synchronized (EmbeddedFlightStore.class) {
+      if (--users == 0) {
+        shared = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,769 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+
+/**
+ * Read-only, in-memory copy of the non-canceled rows of the Flights table, keyed by
+ * (origin_city, dest_city, day_of_month). It is loaded once at startup so that searches
+ * can be answered without a round trip to the database.
+ *
+ * The capacity of each leg is the one stored in Flights, which is what search has always
+ * printed; live seat counts are still checked against Capacities when booking.
+ *
+ * The table is kept by column: a flight is a row number into int columns, in fid order, with
+ * its cities and carrier replaced by IDs from a {@link StringDictionary}, so a flight takes
+ * about 40 bytes however long its names are. Routes are sorted arrays of packed
+ * (city, day, city) keys, searched by bisection; a search allocates nothing but the
+ * itineraries it returns and the candidates of its two hop merge.
+ *
+ * {@link #write} saves the columns to a snapshot file that {@link #map} maps back in without
+ * reading or parsing it, so a new process can search as soon as the file is mapped, and every
+ * process on a host shares the pages.
+ */
+public class FlightIndex
+{
+  private static final String LOAD_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+                                           + "actual_time, capacity, price "
+                                           + "FROM Flights "
+                                           + "WHERE actual_time IS NOT NULL AND canceled = 0";
+
+  // the columns of a flight, in the order Rows keeps them
+  private static final int FID = 0;
+  private static final int DAY = 1;
+  private static final int CARRIER = 2;
+  private static final int NUMBER = 3;
+  private static final int ORIGIN = 4;
+  private static final int DEST = 5;
+  private static final int TIME = 6;
+  private static final int CAPACITY = 7;
+  private static final int PRICE = 8;
+  private static final int COLUMNS = 9;
+
+  // a route key packs two city IDs and a day into this many bits each
+  private static final int KEY_BITS = 21;
+  private static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+  // "FLTS", the first four bytes of a snapshot, and the only layout of one this class reads
+  private static final int SNAPSHOT_MAGIC = 0x464C5453;
+  private static final int SNAPSHOT_VERSION = 1;
+
+  /**
+   * The flights as they are read, before they are put in order.
+   */
+  private static class Rows
+  {
+    final StringDictionary cities = new StringDictionary();
+    final StringDictionary carriers = new StringDictionary();
+    int[][] columns = new int[COLUMNS][1024];
+    int count = 0;
+
+    void add(int fid, int dayOfMonth, String carrierId, int flightNum, String originCity, String destCity,
+             int time, int capacity, int price) {
+      if (count == columns[0].length) {
+        for (int c = 0; c < COLUMNS; c++) {
+          columns[c] = Arrays.copyOf(columns[c], count * 2);
+        }
+      }
+      columns[FID][count] = fid;
+      columns[DAY][count] = dayOfMonth;
+      columns[CARRIER][count] = carriers.add(carrierId);
+      columns[NUMBER][count] = flightNum;
+      columns[ORIGIN][count] = cities.add(originCity);
+      columns[DEST][count] = cities.add(destCity);
+      columns[TIME][count] = time;
+      columns[CAPACITY][count] = capacity;
+      columns[PRICE][count] = price;
+      count++;
+    }
+  }
+
+  private final StringDictionary cities;
+  private final StringDictionary carriers;
+
+  private final int size;
+  private final int routes;
+
+  // one entry per flight, in fid order
+  private final IntBuffer fid;
+  private final IntBuffer dayOfMonth;
+  private final IntBuffer carrier;
+  private final IntBuffer flightNum;
+  private final IntBuffer origin;
+  private final IntBuffer dest;
+  private final IntBuffer time;
+  private final IntBuffer capacity;
+  private final IntBuffer price;
+
+  // the (origin, day, dest) key of every route, sorted; the flights of route r are
+  // routeFlights[routeStart[r]] up to routeFlights[routeStart[r + 1]], shortest first
+  private final LongBuffer routeKeys;
+  private final IntBuffer routeStart;
+  private final IntBuffer routeFlights;
+
+  // the (dest, day, origin) key of every route, sorted, and the route each one is
+  private final LongBuffer arrivalKeys;
+  private final IntBuffer arrivalRoutes;
+
+  /*
+   * Every column is a buffer over the arrays it was built from when the index was built in this
+   * JVM, which reads as fast as the arrays themselves, and a little-endian view of the mapped
+   * file when it was read from a snapshot, so searches run the same code either way. Only
+   * absolute gets are used, so any number of threads can read them at once.
+   */
+  private FlightIndex(StringDictionary cities, StringDictionary carriers, IntBuffer[] columns, LongBuffer routeKeys,
+                      IntBuffer routeStart, IntBuffer routeFlights, LongBuffer arrivalKeys, IntBuffer arrivalRoutes)
+  {
+    this.cities = cities;
+    this.carriers = carriers;
+    this.size = columns[FID].limit();
+    this.routes = routeKeys.limit();
+    this.fid = columns[FID];
+    this.dayOfMonth = columns[DAY];
+    this.carrier = columns[CARRIER];
+    this.flightNum = columns[NUMBER];
+    this.origin = columns[ORIGIN];
+    this.dest = columns[DEST];
+    this.time = columns[TIME];
+    this.capacity = columns[CAPACITY];
+    this.price = columns[PRICE];
+    this.routeKeys = routeKeys;
+    this.routeStart = routeStart;
+    this.routeFlights = routeFlights;
+    this.arrivalKeys = arrivalKeys;
+    this.arrivalRoutes = arrivalRoutes;
+  }
+
+  // puts the flights in order and builds the routes over them
+  private static FlightIndex build(Rows rows)
+  {
+    StringDictionary cities = rows.cities;
+    if (cities.size() > KEY_MASK) {
+      throw new IllegalArgumentException("Too many cities for the flight index: " + cities.size());
+    }
+    int n = rows.count;
+
+    // put the flights in fid order, so that a flight's row can be found by bisection on fid
+    long[] byFid = new long[n];
+    for (int i = 0; i < n; i++) {
+      byFid[i] = ((long) rows.columns[FID][i] << 32) | i;
+    }
+    Arrays.sort(byFid);
+    int[][] columns = new int[COLUMNS][n];
+    for (int i = 0; i < n; i++) {
+      int from = (int) byFid[i];
+      for (int c = 0; c < COLUMNS; c++) {
+        columns[c][i] = rows.columns[c][from];
+      }
+    }
+    int[] fid = columns[FID];
+    int[] dayOfMonth = columns[DAY];
+    int[] origin = columns[ORIGIN];
+    int[] dest = columns[DEST];
+    int[] time = columns[TIME];
+
+    // one route per distinct (origin, day, dest), each flight counted into its route
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) {
+      if (dayOfMonth[i] < 0 || dayOfMonth[i] >= KEY_MASK) {
+        throw new IllegalArgumentException("Day of month out of range for flight " + fid[i] + ": " + dayOfMonth[i]);
+      }
+      keys[i] = routeKey(origin[i], dayOfMonth[i], dest[i]);
+    }
+    long[] routeKeys = distinct(keys);
+    int routes = routeKeys.length;
+    int[] routeStart = new int[routes + 1];
+    int[] routeOf = new int[n];
+    for (int i = 0; i < n; i++) {
+      routeOf[i] = Arrays.binarySearch(routeKeys, keys[i]);
+      routeStart[routeOf[i] + 1]++;
+    }
+    for (int r = 0; r < routes; r++) {
+      routeStart[r + 1] += routeStart[r];
+    }
+    int[] routeFlights = new int[n];
+    int[] next = Arrays.copyOf(routeStart, routes);
+    for (int i = 0; i < n; i++) {
+      routeFlights[next[routeOf[i]]++] = i;
+    }
+
+    // orders each route the same way as "ORDER BY actual_time ASC, fid ASC"; rows are in fid order
+    long[] order = new long[0];
+    for (int r = 0; r < routes; r++) {
+      int start = routeStart[r];
+      int length = routeStart[r + 1] - start;
+      if (order.length < length) {
+        order = new long[length];
+      }
+      for (int k = 0; k < length; k++) {
+        int row = routeFlights[start + k];
+        order[k] = ((long) time[row] << 32) | row;
+      }
+      Arrays.sort(order, 0, length);
+      for (int k = 0; k < length; k++) {
+        routeFlights[start + k] = (int) order[k];
+      }
+    }
+
+    long[] arrivalKeys = new long[routes];
+    for (int r = 0; r < routes; r++) {
+      arrivalKeys[r] = reverse(routeKeys[r]);
+    }
+    Arrays.sort(arrivalKeys);
+    int[] arrivalRoutes = new int[routes];
+    for (int a = 0; a < routes; a++) {
+      arrivalRoutes[a] = Arrays.binarySearch(routeKeys, reverse(arrivalKeys[a]));
+    }
+
+    IntBuffer[] buffers = new IntBuffer[COLUMNS];
+    for (int c = 0; c < COLUMNS; c++) {
+      buffers[c] = IntBuffer.wrap(columns[c]);
+    }
+    return new FlightIndex(cities, rows.carriers, buffers, LongBuffer.wrap(routeKeys), IntBuffer.wrap(routeStart),
+                           IntBuffer.wrap(routeFlights), LongBuffer.wrap(arrivalKeys), IntBuffer.wrap(arrivalRoutes));
+  }
+
+  /**
+   * Reads every bookable row of the Flights table through {@code conn}.
+   */
+  public static FlightIndex load(Connection conn) throws SQLException
+  {
+    Rows index = new Rows();
+    PreparedStatement loadStatement = conn.prepareStatement(LOAD_FLIGHTS);
+    try {
+      ResultSet rows = loadStatement.executeQuery();
+      while (rows.next()) {
+        index.add(rows.getInt("fid"), rows.getInt("day_of_month"), rows.getString("carrier_id"),
+                  rows.getInt("flight_num"), rows.getString("origin_city"), rows.getString("dest_city"),
+                  rows.getInt("actual_time"), rows.getInt("capacity"), rows.getInt("price"));
+      }
+      rows.close();
+    } finally {
+      loadStatement.close();
+    }
+    return build(index);
+  }
+
+  /**
+   * Reads every bookable row of a Flights table dump: one flight per line, with the columns of
+   * the Flights table in order, separated by commas. An empty actual_time stands for NULL.
+   */
+  public static FlightIndex read(String path) throws IOException
+  {
+    Rows index = new Rows();
+    BufferedReader reader = new BufferedReader(new FileReader(path));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] columns = line.split(",", -1);
+        if (columns.length < 18) {
+          continue;
+        }
+        // fid, month_id, day_of_month, day_of_week_id, carrier_id, flight_num, origin_city, origin_state,
+        // dest_city, dest_state, departure_delay, taxi_out, arrival_delay, canceled, actual_time, distance,
+        // capacity, price
+        if (columns[14].trim().isEmpty() || Integer.parseInt(columns[13].trim()) != 0) {
+          continue;
+        }
+        index.add(Integer.parseInt(columns[0].trim()), Integer.parseInt(columns[2].trim()), columns[4],
+                  Integer.parseInt(columns[5].trim()), columns[6], columns[8],
+                  Integer.parseInt(columns[14].trim()), Integer.parseInt(columns[16].trim()),
+                  Integer.parseInt(columns[17].trim()));
+      }
+    } finally {
+      reader.close();
+    }
+    return build(index);
+  }
+
+  /**
+   * Reads the flights the way configProps says to: from the snapshot named by
+   * flightservice.flight_snapshot, else from the dump named by flightservice.embedded_flights,
+   * else from the Flights table of the configured database.
+   */
+  public static FlightIndex open(Properties configProps) throws IOException, SQLException
+  {
+    String snapshot = configProps.getProperty("flightservice.flight_snapshot", "").trim();
+    if (!snapshot.isEmpty()) {
+      return map(snapshot);
+    }
+    String dump = configProps.getProperty("flightservice.embedded_flights", "").trim();
+    if (!dump.isEmpty()) {
+      return read(dump);
+    }
+    return loadDatabase(configProps);
+  }
+
+  /**
+   * Reads every bookable row of the Flights table of the database configProps points at.
+   */
+  public static FlightIndex loadDatabase(Properties configProps) throws SQLException
+  {
+    try {
+      Class.forName(configProps.getProperty("flightservice.jdbc_driver"));
+    } catch (ClassNotFoundException e) {
+      throw new SQLException("No JDBC driver to load the flights with", e);
+    }
+    Connection conn = DriverManager.getConnection(configProps.getProperty("flightservice.url"),
+                                                  configProps.getProperty("flightservice.sqlazure_username"),
+                                                  configProps.getProperty("flightservice.sqlazure_password"));
+    try {
+      return load(conn);
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Writes the index to {@code path} as a snapshot {@link #map} can read back: the format
+   * version, the flight and route counts, the city and carrier names, then every column as
+   * little-endian ints and longs, the longs aligned to 8 bytes. The file is written beside
+   * {@code path} and moved over it, so a process mapping it never sees half of one.
+   */
+  public void write(String path) throws IOException
+  {
+    byte[][] cityNames = encode(cities);
+    byte[][] carrierNames = encode(carriers);
+    long length = align(16 + namesLength(cityNames) + namesLength(carrierNames)) + 16L * routes
+                  + 4L * ((long) COLUMNS * size + routes + 1 + size + routes);
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Too many flights for a snapshot: " + size);
+    }
+
+    File file = new File(path).getAbsoluteFile();
+    File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    RandomAccessFile out = new RandomAccessFile(temp, "rw");
+    boolean written = false;
+    try {
+      MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(size).putInt(routes);
+      putNames(buffer, cityNames);
+      putNames(buffer, carrierNames);
+      buffer.position(align(buffer.position()));
+      for (LongBuffer keys : new LongBuffer[] { routeKeys, arrivalKeys }) {
+        for (int i = 0; i < routes; i++) {
+          buffer.putLong(keys.get(i));
+        }
+      }
+      for (IntBuffer column : new IntBuffer[] { fid, dayOfMonth, carrier, flightNum, origin, dest, time, capacity,
+                                                price, routeStart, routeFlights, arrivalRoutes }) {
+        for (int i = 0; i < column.limit(); i++) {
+          buffer.putInt(column.get(i));
+        }
+      }
+      buffer.force();
+      written = true;
+    } finally {
+      out.close();
+      if (!written) {
+        temp.delete();
+      }
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Maps a snapshot made by {@link #write}. Only the names are read up front; the columns are
+   * used where they lie in the file, paged in by the operating system as searches touch them.
+   *
+   * @throws IOException if the file isn't a snapshot of the version this class writes
+   */
+  public static FlightIndex map(String path) throws IOException
+  {
+    MappedByteBuffer buffer;
+    RandomAccessFile in = new RandomAccessFile(path, "r");
+    try {
+      long length = in.length();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException(path + " is too large to be a flight snapshot");
+      }
+      // the mapping stays valid once the file is closed
+      buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    } finally {
+      in.close();
+    }
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    try {
+      if (buffer.remaining() < 16 || buffer.getInt() != SNAPSHOT_MAGIC) {
+        throw new IOException(path + " is not a flight snapshot");
+      }
+      int version = buffer.getInt();
+      if (version != SNAPSHOT_VERSION) {
+        throw new IOException(path + " is a version " + version + " flight snapshot, expected version "
+                              + SNAPSHOT_VERSION);
+      }
+      int size = buffer.getInt();
+      int routes = buffer.getInt();
+      StringDictionary cities = getNames(buffer);
+      StringDictionary carriers = getNames(buffer);
+
+      int offset = align(buffer.position());
+      long expected = offset + 16L * routes + 4L * ((long) COLUMNS * size + routes + 1 + size + routes);
+      if (size < 0 || routes < 0 || expected != buffer.capacity()) {
+        throw new IOException(path + " is not a complete flight snapshot");
+      }
+      LongBuffer routeKeys = longs(buffer, offset, routes);
+      offset += 8 * routes;
+      LongBuffer arrivalKeys = longs(buffer, offset, routes);
+      offset += 8 * routes;
+      IntBuffer[] columns = new IntBuffer[COLUMNS];
+      for (int c = 0; c < COLUMNS; c++) {
+        columns[c] = ints(buffer, offset, size);
+        offset += 4 * size;
+      }
+      IntBuffer routeStart = ints(buffer, offset, routes + 1);
+      offset += 4 * (routes + 1);
+      IntBuffer routeFlights = ints(buffer, offset, size);
+      offset += 4 * size;
+      IntBuffer arrivalRoutes = ints(buffer, offset, routes);
+      return new FlightIndex(cities, carriers, columns, routeKeys, routeStart, routeFlights, arrivalKeys,
+                             arrivalRoutes);
+    } catch (RuntimeException e) {
+      // a count or a name length pointing past the end of the file
+      throw new IOException(path + " is not a complete flight snapshot", e);
+    }
+  }
+
+  private static int align(int offset)
+  {
+    return (offset + 7) & ~7;
+  }
+
+  private static IntBuffer ints(ByteBuffer buffer, int offset, int count)
+  {
+    return buffer.slice(offset, 4 * count).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+  }
+
+  private static LongBuffer longs(ByteBuffer buffer, int offset, int count)
+  {
+    return buffer.slice(offset, 8 * count).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+  }
+
+  // every name in ID order, as UTF-8; null stays null
+  private static byte[][] encode(StringDictionary names)
+  {
+    byte[][] encoded = new byte[names.size()][];
+    for (int id = 0; id < encoded.length; id++) {
+      String name = names.name(id);
+      encoded[id] = (name == null) ? null : name.getBytes(StandardCharsets.UTF_8);
+    }
+    return encoded;
+  }
+
+  private static int namesLength(byte[][] names)
+  {
+    int length = 4;
+    for (byte[] name : names) {
+      length += 4 + ((name == null) ? 0 : name.length);
+    }
+    return length;
+  }
+
+  // the count, then each name as its length in bytes (-1 for null) and its bytes
+  private static void putNames(ByteBuffer buffer, byte[][] names)
+  {
+    buffer.putInt(names.length);
+    for (byte[] name : names) {
+      if (name == null) {
+        buffer.putInt(-1);
+      } else {
+        buffer.putInt(name.length).put(name);
+      }
+    }
+  }
+
+  private static StringDictionary getNames(ByteBuffer buffer)
+  {
+    StringDictionary names = new StringDictionary();
+    int count = buffer.getInt();
+    for (int id = 0; id < count; id++) {
+      int length = buffer.getInt();
+      String name = null;
+      if (length >= 0) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        name = new String(bytes, StandardCharsets.UTF_8);
+      }
+      if (names.add(name) != id) {
+        throw new IllegalStateException("name listed twice: " + name);
+      }
+    }
+    return names;
+  }
+
+  // the sorted distinct values of keys
+  private static long[] distinct(long[] keys)
+  {
+    long[] sorted = keys.clone();
+    Arrays.sort(sorted);
+    int count = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[count++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, count);
+  }
+
+  // sorts by from, then day, then to; days outside [0, 2^21) must be turned away before
+  private static long routeKey(int from, int day, int to)
+  {
+    return ((long) from << (2 * KEY_BITS)) | ((long) day << KEY_BITS) | to;
+  }
+
+  // (from, day, to) -> (to, day, from)
+  private static long reverse(long key)
+  {
+    return routeKey((int) (key & KEY_MASK), (int) ((key >>> KEY_BITS) & KEY_MASK), (int) (key >>> (2 * KEY_BITS)));
+  }
+
+  // the first index of keys[from, to) whose key is at least key
+  private static int lowerBound(LongBuffer keys, int from, int to, long key)
+  {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (keys.get(mid) < key) {
+        from = mid + 1;
+      } else {
+        to = mid;
+      }
+    }
+    return from;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return the row of the flight with this fid, or -1 if there is none
+   */
+  int row(int fid)
+  {
+    int from = 0;
+    int to = size;
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      int midFid = this.fid.get(mid);
+      if (midFid < fid) {
+        from = mid + 1;
+      } else if (midFid > fid) {
+        to = mid;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  int capacity(int row)
+  {
+    return capacity.get(row);
+  }
+
+  int price(int row)
+  {
+    return price.get(row);
+  }
+
+  /**
+   * @return the flight in {@code row} as a one leg itinerary
+   */
+  Query.Flight flight(int row)
+  {
+    return flight(row, price.get(row));
+  }
+
+  /**
+   * @return the flight in {@code row} as a one leg itinerary, showing {@code price} rather than its own
+   */
+  Query.Flight flight(int row, int price)
+  {
+    return new Query.Flight(fid.get(row), dayOfMonth.get(row), carriers.name(carrier.get(row)), flightNum.get(row),
+                            cities.name(origin.get(row)), cities.name(dest.get(row)), time.get(row),
+                            capacity.get(row), price);
+  }
+
+  // the flights in rows a and b as a two hop itinerary
+  private Query.Flight twoHopFlight(int a, int b)
+  {
+    return new Query.Flight(fid.get(a), dayOfMonth.get(a), carriers.name(carrier.get(a)), flightNum.get(a),
+                            cities.name(origin.get(a)), cities.name(dest.get(a)), time.get(a), capacity.get(a),
+                            price.get(a), fid.get(b), dayOfMonth.get(b), carriers.name(carrier.get(b)),
+                            flightNum.get(b), cities.name(origin.get(b)), cities.name(dest.get(b)), time.get(b),
+                            capacity.get(b), price.get(b));
+  }
+
+  /**
+   * Fills {@code bookingOptions} with the direct flights and then the two hop flights from
+   * {@code originCity} to {@code destCity} on {@code dayOfMonth}, shortest first, the same way
+   * the SEARCH_ONE_HOP and SEARCH_TWO_HOP queries would.
+   *
+   * @return the number of itineraries found
+   */
+  int search(Query.Flight[] bookingOptions, String originCity, String destCity, boolean directFlight,
+             int dayOfMonth, int numberOfItineraries)
+  {
+    // matched the way the Flights table compares them, ignoring case and trailing spaces
+    int from = cities.idIgnoringCase(originCity);
+    int to = cities.idIgnoringCase(destCity);
+    if (from < 0 || to < 0 || dayOfMonth < 0 || dayOfMonth >= KEY_MASK || numberOfItineraries <= 0) {
+      return 0;
+    }
+
+    int flightCount = 0;
+    long key = routeKey(from, dayOfMonth, to);
+    int route = lowerBound(routeKeys, 0, routes, key);
+    if (route < routes && routeKeys.get(route) == key) {
+      int end = Math.min(routeStart.get(route + 1), routeStart.get(route) + numberOfItineraries);
+      for (int k = routeStart.get(route); k < end; k++) {
+        bookingOptions[flightCount++] = flight(routeFlights.get(k));
+      }
+    }
+
+    if (directFlight || flightCount >= numberOfItineraries) {
+      return flightCount;
+    }
+
+    ItineraryMerge merge = new ItineraryMerge(bookingOptions, flightCount);
+    for (Candidate hop : twoHop(from, to, dayOfMonth, numberOfItineraries - flightCount)) {
+      int a = hop.first();
+      bookingOptions[merge.slotFor(hop.totalTime, fid.get(a))] = twoHopFlight(a, hop.second());
+    }
+    return merge.finish();
+  }
+
+  /**
+   * @return up to {@code limit} connections from city {@code from} to city {@code to} on
+   * {@code dayOfMonth}, shortest total duration first.
+   *
+   * The routes leaving the origin that day are sorted by destination and the routes arriving at
+   * the destination that day by origin, so the hubs are found by walking both at once. Every hub
+   * contributes two lists of legs sorted by duration, so the pairs through one hub form a grid
+   * whose sums only grow to the right and downwards. The grids are merged lazily through a
+   * priority queue: a pair is only built once the pair before it in its grid has been returned,
+   * so roughly {@code limit} pairs are built no matter how busy the hubs are.
+   */
+  private List<Candidate> twoHop(int from, int to, int dayOfMonth, int limit)
+  {
+    int d = lowerBound(routeKeys, 0, routes, routeKey(from, dayOfMonth, 0));
+    int dEnd = lowerBound(routeKeys, d, routes, routeKey(from, dayOfMonth + 1, 0));
+    int a = lowerBound(arrivalKeys, 0, routes, routeKey(to, dayOfMonth, 0));
+    int aEnd = lowerBound(arrivalKeys, a, routes, routeKey(to, dayOfMonth + 1, 0));
+    if (d == dEnd || a == aEnd) {
+      return Collections.emptyList();
+    }
+
+    List<Candidate> seeds = new ArrayList<Candidate>();
+    while (d < dEnd && a < aEnd) {
+      long hub = routeKeys.get(d) & KEY_MASK;
+      long otherHub = arrivalKeys.get(a) & KEY_MASK;
+      if (hub < otherHub) {
+        d++;
+      } else if (hub > otherHub) {
+        a++;
+      } else {
+        seeds.add(new Candidate(d, arrivalRoutes.get(a), 0, 0));
+        d++;
+        a++;
+      }
+    }
+
+    // a hub whose shortest pair doesn't make the first limit seeds can't place any pair in the result
+    if (seeds.size() > limit) {
+      Collections.sort(seeds);
+      seeds = seeds.subList(0, limit);
+    }
+    PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>(Math.max(1, seeds.size()));
+    queue.addAll(seeds);
+
+    List<Candidate> connections = new ArrayList<Candidate>(Math.min(limit, 64));
+    while (connections.size() < limit && !queue.isEmpty()) {
+      Candidate next = queue.poll();
+      connections.add(next);
+
+      // successors of (i, j) are (i, j + 1), and (i + 1, 0) from the head of each row
+      if (next.j + 1 < next.length(next.secondRoute)) {
+        queue.add(new Candidate(next.firstRoute, next.secondRoute, next.i, next.j + 1));
+      }
+      if (next.j == 0 && next.i + 1 < next.length(next.firstRoute)) {
+        queue.add(new Candidate(next.firstRoute, next.secondRoute, next.i + 1, 0));
+      }
+    }
+    return connections;
+  }
+
+  /**
+   * The pair (i-th flight of firstRoute, j-th flight of secondRoute) through one hub, ordered by
+   * total duration, then by the fid of each leg the same way as "ORDER BY total_time ASC, F.fid ASC".
+   * Since both routes are sorted by (duration, fid), moving right or down in the grid never
+   * produces a pair that sorts earlier, which is what makes the lazy merge exact.
+   */
+  private class Candidate implements Comparable<Candidate>
+  {
+    final int firstRoute;
+    final int secondRoute;
+    final int i;
+    final int j;
+    final int totalTime;
+    final int fid;
+    final int fid2;
+
+    Candidate(int firstRoute, int secondRoute, int i, int j) {
+      this.firstRoute = firstRoute;
+      this.secondRoute = secondRoute;
+      this.i = i;
+      this.j = j;
+      this.totalTime = time.get(first()) + time.get(second());
+      this.fid = FlightIndex.this.fid.get(first());
+      this.fid2 = FlightIndex.this.fid.get(second());
+    }
+
+    // the rows of the two legs
+    int first() {
+      return routeFlights.get(routeStart.get(firstRoute) + i);
+    }
+
+    int second() {
+      return routeFlights.get(routeStart.get(secondRoute) + j);
+    }
+
+    int length(int route) {
+      return routeStart.get(route + 1) - routeStart.get(route);
+    }
+
+    public int compareTo(Candidate other) {
+      if (totalTime != other.totalTime) {
+        return totalTime < other.totalTime ? -1 : 1;
+      }
+      if (fid != other.fid) {
+        return fid < other.fid ? -1 : 1;
+      }
+      return Integer.compare(fid2, other.fid2);
+    }
+  }
+}
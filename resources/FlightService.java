@@ -1,173 +1,444 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class FlightService
 {
   public static final String DBCONFIG_FILENAME = "dbconn.properties";
 
   public static void usage()
+  {
+    usage(System.out);
+  }
+
+  public static void usage(PrintStream out)
   {
     /* prints the choices for commands and parameters */
-    System.out.println();
-    System.out.println(" *** Please enter one of the following commands *** ");
-    System.out.println("> create <username> <password> <initial amount>");
-    System.out.println("> login <username> <password>");
-    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
-    System.out.println("> book <itinerary id>");
-    System.out.println("> pay <reservation id>");
-    System.out.println("> reservations");
-    System.out.println("> cancel <reservation id>");
-    System.out.println("> quit");
+    out.println();
+    out.println(" *** Please enter one of the following commands *** ");
+    out.println("> create <username> <password> <initial amount>");
+    out.println("> login <username> <password>");
+    out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    out.println("> book <itinerary id>");
+    out.println("> pay <reservation id>");
+    out.println("> reservations [after <reservation id>] [limit <n>]");
+    out.println("> cancel <reservation id>");
+    out.println("> stats");
+    out.println("> quit");
   }
 
-  public static String[] tokenize(String command)
+  /**
+   * One entry of the dispatch table: a command, the timer it is recorded in and what it does.
+   */
+  private static abstract class Command
   {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find())
+    final String name;
+    final Metrics.Timer timer;
+
+    Command(String name)
     {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
+      this.name = name;
+      this.timer = Metrics.timer("command." + name);
     }
-    return tokens.toArray(new String[0]);
-  }
 
-  public static String execute (Query q, String command)
-  {
-    String response;
+    /* line holds the command and its arguments, as token 0 and on */
+    abstract String run(Query q, Session session, CommandLine line);
 
-    String[] tokens = tokenize(command.trim());
-    if (tokens.length == 0)
-      response = "Please enter a command";
+    /* writes the response to out; a command whose response can be any length writes it as it goes */
+    void run(Query q, Session session, CommandLine line, PrintStream out)
+    {
+      out.print(run(q, session, line));
+    }
+  }
 
-    else if (tokens[0].equals("login"))
+  // looked up by comparing the first token in place, so picking a command allocates nothing
+  private static final Command[] COMMANDS = {
+    new Command("login")
     {
-      if (tokens.length == 3)
+      String run(Query q, Session session, CommandLine line)
       {
+        if (line.count() != 3)
+          return "Error: Please provide a username and password";
         /* authenticate the user */
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
+        return q.transaction_login(session, line.token(1), line.token(2));
       }
-      else
-        response = "Error: Please provide a username and password";
-    }
-
-    else if (tokens[0].equals("create"))
+    },
+    new Command("create")
     {
-      /* create a new customer */
-      if (tokens.length == 4)
+      String run(Query q, Session session, CommandLine line)
       {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
+        if (line.count() != 4)
+          return "Error: Please provide a username, password, and initial amount in the account";
+        /* create a new customer */
+        String username = line.token(1);
+        String password = line.token(2);
+        int initAmount = line.intToken(3);
+        return q.transaction_createCustomer(username, password, initAmount);
       }
-      else
-        response = "Error: Please provide a username, password, and initial amount in the account";
-    }
-
-    else if (tokens[0].equals("search"))
+    },
+    new Command("search")
     {
-				/* search for flights */
-      if (tokens.length == 6)
+      String run(Query q, Session session, CommandLine line)
       {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        Integer day;
-        Integer count;
+        if (line.count() != 6)
+          return "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        /* search for flights */
+        int day;
+        int count;
         try
         {
-          day = Integer.valueOf(tokens[4]);
-          count = Integer.valueOf(tokens[5]);
-          //System.out.println("Searching for flights");
-          //response = q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          day = line.intToken(4);
+          count = line.intToken(5);
         }
-        catch (NumberFormatException e) { response = "Failed to parse integer"; }
+        catch (NumberFormatException e) { return PARSE_ERROR; }
+        boolean direct = line.is(3, "1");
+        //return q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
+        return q.transaction_search(session, line.token(1), line.token(2), direct, day, count);
       }
-      else
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-    }
-
-    else if (tokens[0].equals("book"))
+    },
+    new Command("book")
     {
-				/* book a flight ticket */
-      if (tokens.length == 2)
+      String run(Query q, Session session, CommandLine line)
       {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Booking itinerary.");
-        response = q.transaction_book(itinerary_id);
+        if (line.count() != 2)
+          return "Error: Please provide an itinerary_id";
+        /* book a flight ticket */
+        return q.transaction_book(session, line.intToken(1));
       }
-      else
-        response = "Error: Please provide an itinerary_id";
-    }
-
-    else if (tokens[0].equals("reservations"))
+    },
+    new Command("reservations")
     {
-				/* list all reservations */
-      response = q.transaction_reservations();
-    }
+      String run(Query q, Session session, CommandLine line)
+      {
+        if (!isPaged(line))
+          /* list all reservations */
+          return q.transaction_reservations(session);
+        int[] page = page(line);
+        if (page == null)
+          return PAGE_ERROR;
+        return q.transaction_reservations(session, page[0], page[1]);
+      }
 
-    else if (tokens[0].equals("pay"))
+      void run(Query q, Session session, CommandLine line, PrintStream out)
+      {
+        int[] page = isPaged(line) ? page(line) : null;
+        if (page == null)
+          out.print(run(q, session, line));
+        else
+          try { q.transaction_reservations(session, page[0], page[1], out); }
+          catch (IOException e) { /* a PrintStream doesn't throw */ }
+      }
+    },
+    new Command("pay")
     {
-      /* pay for an unpaid reservation */
-      if (tokens.length == 2)
+      String run(Query q, Session session, CommandLine line)
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Paying reservation.");
-        response = q.transaction_pay(reservation_id);
+        if (line.count() != 2)
+          return "Error: Please provide a reservation_id";
+        /* pay for an unpaid reservation */
+        return q.transaction_pay(session, line.intToken(1));
       }
-      else
-        response = "Error: Please provide a reservation_id";
-    }
+    },
+    new Command("cancel")
+    {
+      String run(Query q, Session session, CommandLine line)
+      {
+        if (line.count() != 2)
+          return "Error: Please provide a reservation_id";
+        /* cancel a reservation */
+        return q.transaction_cancel(session, line.intToken(1));
+      }
+    },
+    new Command("stats")
+    {
+      String run(Query q, Session session, CommandLine line)
+      {
+        /* latencies and outcome counts since the process started */
+        return Metrics.report();
+      }
+    },
+    new Command("quit")
+    {
+      String run(Query q, Session session, CommandLine line)
+      {
+        return "Goodbye\n";
+      }
+    },
+  };
+  private static final Metrics.Timer OTHER_COMMANDS = Metrics.timer("command.other");
+
+  /* what a command answers when an argument that should be a number isn't one */
+  private static final String PARSE_ERROR = "Failed to parse integer";
+
+  private static final String PAGE_ERROR = "Error: Please provide reservations [after <reservation_id>] [limit <n>]";
 
-    else if (tokens[0].equals("cancel"))
+  /* a reservations command asking for one page: reservations [after <id>] [limit <n>] */
+  private static boolean isPaged(CommandLine line)
+  {
+    return line.count() > 1 && (line.is(1, "after") || line.is(1, "limit"));
+  }
+
+  /* the reservation ID a page starts after and how many it holds, or null if they don't parse */
+  private static int[] page(CommandLine line)
+  {
+    int[] page = { 0, Integer.MAX_VALUE };
+    int i = 1;
+    try
     {
-				/* cancel a reservation */
-      if (tokens.length == 2)
+      if (i + 1 < line.count() && line.is(i, "after"))
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Canceling reservation.");
-        response = q.transaction_cancel(reservation_id);
+        page[0] = line.intToken(i + 1);
+        i += 2;
+      }
+      if (i + 1 < line.count() && line.is(i, "limit"))
+      {
+        page[1] = line.intToken(i + 1);
+        i += 2;
       }
-      else
-        response = "Error: Please provide a reservation_id";
     }
+    catch (NumberFormatException e) { return null; }
+    if (i != line.count() || page[1] <= 0)
+      return null;
+    return page;
+  }
 
-    else if (tokens[0].equals("quit"))
-      response = "Goodbye\n";
+  /**
+   * Splits {@code command} the way execute does: on whitespace, except inside double quotes.
+   */
+  public static String[] tokenize(String command)
+  {
+    return new CommandLine().parse(command).tokens();
+  }
 
-    else
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+  public static String execute (Query q, String command)
+  {
+    return execute(q, q.defaultSession(), command);
+  }
+
+  /**
+   * Runs one command for {@code session}. Different sessions can call this at the same time on
+   * the same Query.
+   */
+  public static String execute (Query q, Session session, String command)
+  {
+    long start = System.nanoTime();
+    CommandLine line = session.commandLine.parse(command);
+    if (line.count() == 0)
+    {
+      OTHER_COMMANDS.recordSince(start);
+      return "Please enter a command";
+    }
 
+    Command c = lookup(line);
+    if (c != null)
+    {
+      String response;
+      try { response = c.run(q, session, line); }
+      catch (NumberFormatException e) { response = PARSE_ERROR; }
+      c.timer.recordSince(start);
+      return response;
+    }
+
+    String response = "Error: unrecognized command '" + line.token(0) + "'";
+    OTHER_COMMANDS.recordSince(start);
     return response;
   }
 
+  /**
+   * Runs one command for {@code session} like {@link #execute(Query, Session, String)}, but
+   * prints the response to {@code out}, where a page of reservations is printed as the store
+   * reads it rather than put together first.
+   *
+   * @return false if the command was quit
+   */
+  public static boolean execute (Query q, Session session, String command, PrintStream out)
+  {
+    long start = System.nanoTime();
+    CommandLine line = session.commandLine.parse(command);
+    Command c = (line.count() > 0) ? lookup(line) : null;
+    if (c == null)
+    {
+      out.print(execute(q, session, command));
+      return true;
+    }
+
+    boolean quit = c.name.equals("quit");
+    try { c.run(q, session, line, out); }
+    catch (NumberFormatException e) { out.print(PARSE_ERROR); }
+    c.timer.recordSince(start);
+    return !quit;
+  }
+
+  private static Command lookup(CommandLine line)
+  {
+    for (Command c : COMMANDS)
+    {
+      if (line.is(0, c.name))
+        return c;
+    }
+    return null;
+  }
+
   /* REPL (Read-Execute-Print-Loop) */
   public static void menu(Query q) throws Exception
   {
-    while (true)
+    /* System.out flushes every line it prints; this flushes only when the REPL waits for input */
+    PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+                                      false);
+    menu(q, q.defaultSession(), new BufferedReader(new InputStreamReader(System.in), 1 << 16), out);
+  }
+
+  /**
+   * Runs the REPL for one session over the given streams, until the client quits or
+   * disconnects. Used for stdin as well as for every network client, so both see the same bytes.
+   *
+   * Output is flushed when the REPL is about to wait for the next command, not after every
+   * response, so commands piped in or sent in a batch are answered in large writes.
+   */
+  public static void menu(Query q, Session session, BufferedReader in, PrintStream out) throws IOException
+  {
+    try
     {
-      usage();
+      while (true)
+      {
+        usage(out);
 
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
-      System.out.print("> ");
+        out.print("> ");
+        if (!in.ready())
+          out.flush();
 
-      String command = r.readLine();
-      String response = execute(q, command);
-      System.out.print(response);
+        String command = in.readLine();
+        if (command == null)
+          break;
+        if (!execute(q, session, command, out))
+          break;
+      }
+    }
+    finally
+    {
+      out.flush();
+    }
+  }
 
-      if (response.equals("Goodbye\n"))
-        break;
+  /**
+   * Accepts clients on {@code port} and runs the REPL for each one on its own thread, with its
+   * own session, against the shared Query, until the server socket is closed; a failed accept
+   * only loses that one client. Uses a virtual thread per client when the JVM has them (Java 21
+   * and later), so mostly idle clients don't each hold a platform thread. Before that, at most
+   * flightservice.max_clients are served at once, and any more are told to come back later.
+   */
+  public static void listen(final Query q, int port) throws IOException
+  {
+    ExecutorService clients = newClientExecutor(Integer.parseInt(q.property("flightservice.max_clients", "256").trim()));
+    ServerSocket server = new ServerSocket(port);
+    try
+    {
+      while (!server.isClosed())
+      {
+        final Socket client;
+        try
+        {
+          client = server.accept();
+        }
+        catch (IOException e)
+        {
+          /* one failed accept, e.g. out of file descriptors, costs that client only; back off a little and go on */
+          pause(100);
+          continue;
+        }
+        try
+        {
+          clients.execute(new Runnable() {
+            public void run() {
+              serve(q, client);
+            }
+          });
+        }
+        catch (RejectedExecutionException e)
+        {
+          turnAway(client);
+        }
+      }
+    }
+    finally
+    {
+      server.close();
+      clients.shutdown();
+    }
+  }
+
+  private static void pause(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void serve(Query q, Socket client)
+  {
+    try
+    {
+      BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "UTF-8"));
+      PrintStream out = new PrintStream(new BufferedOutputStream(client.getOutputStream()), false, "UTF-8");
+      menu(q, new Session(), in, out);
+    }
+    catch (IOException e)
+    {
+      /* the client went away */
+    }
+    finally
+    {
+      try { client.close(); } catch (IOException e) {}
+    }
+  }
+
+  // tells a client that came when every thread was taken to try again, and hangs up
+  private static void turnAway(Socket client)
+  {
+    try
+    {
+      PrintStream out = new PrintStream(client.getOutputStream(), false, "UTF-8");
+      out.print("Too many clients, try again later\n");
+      out.flush();
+    }
+    catch (IOException e)
+    {
+      /* the client went away */
+    }
+    finally
+    {
+      try { client.close(); } catch (IOException e) {}
+    }
+  }
+
+  // looked up reflectively so that this still compiles and runs before Java 21, on at most maxClients platform
+  // threads, which refuse further clients rather than queue them behind the connected ones
+  private static ExecutorService newClientExecutor(int maxClients)
+  {
+    try
+    {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+    catch (ReflectiveOperationException e)
+    {
+      return new ThreadPoolExecutor(0, Math.max(1, maxClients), 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
     }
   }
 
@@ -177,7 +448,10 @@ public class FlightService
     Query q = new Query(DBCONFIG_FILENAME);
     q.openConnection();
     q.prepareStatements();
-    menu(q); /* menu(...) does the real work */
+    if (args.length == 2 && args[0].equals("--listen"))
+      listen(q, Integer.parseInt(args[1])); /* serves network clients until the process is killed */
+    else
+      menu(q); /* menu(...) does the real work */
     q.closeConnection();
   }
 
@@ -0,0 +1,66 @@
+import java.io.FileInputStream;
+import java.io.PrintStream;
+import java.util.Properties;
+
+/**
+ * Exports the bookable rows of the Flights table to a snapshot file that the search index and
+ * the embedded store map at startup, through flightservice.flight_snapshot, instead of loading
+ * the table. Run it again whenever the Flights table changes.
+ *
+ *   java FlightSnapshot [--config <file>] [--flights <dump>] <snapshot file>
+ */
+public class FlightSnapshot
+{
+  public static void usage(PrintStream out)
+  {
+    out.println("Usage: java FlightSnapshot [options] <snapshot file>");
+    out.println("  --config <file>          database to read the Flights table from (default "
+                + FlightService.DBCONFIG_FILENAME + ")");
+    out.println("  --flights <dump>         read a comma-separated dump of the Flights table instead");
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String config = FlightService.DBCONFIG_FILENAME;
+    String dump = null;
+    String snapshot = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--")) {
+        snapshot = arg;
+      } else if (i + 1 < args.length && arg.equals("--config")) {
+        config = args[++i];
+      } else if (i + 1 < args.length && arg.equals("--flights")) {
+        dump = args[++i];
+      } else {
+        snapshot = null;
+        break;
+      }
+    }
+    if (snapshot == null) {
+      usage(System.err);
+      System.exit(1);
+    }
+
+    long start = System.nanoTime();
+    FlightIndex flights;
+    if (dump != null) {
+      flights = FlightIndex.read(dump);
+    } else {
+      Properties configProps = new Properties();
+      FileInputStream in = new FileInputStream(config);
+      try {
+        configProps.load(in);
+      } finally {
+        in.close();
+      }
+      flights = FlightIndex.loadDatabase(configProps);
+    }
+    long loaded = System.nanoTime();
+    flights.write(snapshot);
+    long written = System.nanoTime();
+
+    System.out.printf("Read %d flights in %d ms, wrote %s in %d ms%n", flights.size(), (loaded - start) / 1000000,
+                      snapshot, (written - loaded) / 1000000);
+  }
+}
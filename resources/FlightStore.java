@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Where {@link Query} keeps the flights, users and reservations. Query checks the session and
+ * turns the results into responses; a store only reads and writes the data, and decides every
+ * operation atomically with respect to every other session using the same data.
+ *
+ * Two stores exist: {@link JdbcFlightStore}, which runs against SQL Server, and
+ * {@link EmbeddedFlightStore}, which keeps everything in the JVM. Both must give the same
+ * answers to the same sequence of calls.
+ */
+public interface FlightStore
+{
+  // outcomes of pay
+  int DONE = 0;
+  int NOT_FOUND = 1;
+  int INSUFFICIENT_BALANCE = 2;
+
+  // what book returns instead of a reservation ID
+  int SAME_DAY = -1;
+  int BOOKING_FAILED = -2;
+
+  /**
+   * The outcome of paying for a reservation, the balance left after it, and the price of the
+   * reservation when it was found.
+   */
+  class Payment
+  {
+    final int outcome;
+    final int balance;
+    final int price;
+
+    Payment(int outcome, int balance, int price) {
+      this.outcome = outcome;
+      this.balance = balance;
+      this.price = price;
+    }
+  }
+
+  /**
+   * A reservation as listed by the reservations command. {@code second} is null for a direct
+   * flight.
+   */
+  class Reservation
+  {
+    final int reservationId;
+    final boolean paid;
+    final Query.Flight first;
+    final Query.Flight second;
+
+    Reservation(int reservationId, boolean paid, Query.Flight first, Query.Flight second) {
+      this.reservationId = reservationId;
+      this.paid = paid;
+      this.first = first;
+      this.second = second;
+    }
+  }
+
+  /**
+   * Takes reservations one at a time, as a store reads them.
+   */
+  interface ReservationSink
+  {
+    void add(Reservation reservation) throws IOException;
+  }
+
+  /**
+   * Called once, after the store is created and before any other method.
+   */
+  void prepareStatements() throws SQLException;
+
+  /**
+   * @return true if exactly one user has this username and password
+   */
+  boolean login(String username, String password) throws SQLException;
+
+  /**
+   * @return false if the username is taken
+   */
+  boolean createCustomer(String username, String password, int initAmount) throws SQLException;
+
+  /**
+   * Fills {@code bookingOptions} with up to its length itineraries from {@code originCity} to
+   * {@code destCity} on {@code dayOfMonth}, direct flights and then two hop flights, each sorted
+   * by total time and fid.
+   *
+   * @return the number of itineraries found
+   */
+  int search(Query.Flight[] bookingOptions, String originCity, String destCity, boolean directFlight,
+             int dayOfMonth) throws SQLException;
+
+  /**
+   * Takes a seat on every leg of {@code itinerary} and makes a reservation for it.
+   *
+   * @return the reservation ID, or {@link #SAME_DAY} if the user already has a reservation that
+   * day, or {@link #BOOKING_FAILED} if a leg is full
+   */
+  int book(String username, Query.Flight itinerary) throws SQLException;
+
+  /**
+   * @return the user's reservations that are not canceled
+   */
+  List<Reservation> reservations(String username) throws SQLException;
+
+  /**
+   * Hands {@code sink} the user's reservations that are not canceled and have an ID above
+   * {@code afterId}, in ID order, at most {@code limit} of them, without holding more than a
+   * bounded number of them at once.
+   *
+   * @return the number of reservations handed over
+   */
+  int reservations(String username, int afterId, int limit, ReservationSink sink) throws SQLException, IOException;
+
+  /**
+   * Pays for an unpaid reservation of the user, if the balance covers it.
+   */
+  Payment pay(String username, int reservationId) throws SQLException;
+
+  /**
+   * Cancels a reservation of the user, refunding it if it was paid and giving its seats back.
+   *
+   * @return the fids of its two legs, the second one 0 for a direct flight, or null if the user
+   * has no such reservation or it is already canceled
+   */
+  int[] cancel(String username, int reservationId) throws SQLException;
+
+  /**
+   * Drops every user and reservation, puts every seat back and restarts reservation IDs at 1.
+   */
+  void clear() throws SQLException;
+
+  void close() throws SQLException;
+}
@@ -0,0 +1,43 @@
+/**
+ * Merges the two hop itineraries of a search into the direct ones already at the front of
+ * bookingOptions.
+ *
+ * Both come sorted by (total time, fid), and there are never more than numberOfItineraries of
+ * them together, so the direct flights are parked at the end of the array and the merged order
+ * is written from the front as the two hop itineraries arrive. The write position never catches
+ * up with the unread direct flights, so no second array and no final sort are needed.
+ */
+class ItineraryMerge
+{
+  private final Query.Flight[] bookingOptions;
+  private int written = 0;
+  private int nextDirect;
+
+  ItineraryMerge(Query.Flight[] bookingOptions, int directCount) {
+    this.bookingOptions = bookingOptions;
+    nextDirect = bookingOptions.length - directCount;
+    System.arraycopy(bookingOptions, 0, bookingOptions, nextDirect, directCount);
+  }
+
+  // writes out every direct flight that sorts before a two hop itinerary with this total time
+  // and first fid, and returns the slot for that itinerary
+  int slotFor(int totalTime, int fid) {
+    while(nextDirect < bookingOptions.length
+          && (bookingOptions[nextDirect].time < totalTime
+              || (bookingOptions[nextDirect].time == totalTime && bookingOptions[nextDirect].fid <= fid))) {
+      bookingOptions[written++] = bookingOptions[nextDirect++];
+    }
+    return written++;
+  }
+
+  // writes out the remaining direct flights and returns the number of itineraries
+  int finish() {
+    while(nextDirect < bookingOptions.length) {
+      bookingOptions[written++] = bookingOptions[nextDirect++];
+    }
+    for(int i = written; i < bookingOptions.length; i++) {
+      bookingOptions[i] = null;
+    }
+    return written;
+  }
+}
@@ -0,0 +1,1271 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Keeps the flight service's data in SQL Server, reached through JDBC with the settings in
+ * dbconn.properties.
+ */
+public class JdbcFlightStore implements FlightStore
+{
+  private final Properties configProps;
+
+  // DB Connections, each with its own prepared statements
+  private List<Connection> connections = Collections.synchronizedList(new ArrayList<Connection>());
+  private ConnectionPool<Statements> pool;
+
+  // In-memory copy of Flights used by search, shared by every store in this JVM (null when disabled)
+  private static FlightIndex flightIndex;
+
+  // Remaining seats shared by every store in this JVM (null unless inventory mode is on)
+  private static SeatInventory seatInventory;
+  private static int seatInventoryUsers = 0;
+  private boolean usesSeatInventory = false;
+
+  // Reservation IDs leased in blocks, shared by every store in this JVM so they all hand out the same block (null
+  // when each booking takes its ID from the sequence inside its own transaction)
+  private static ReservationIdAllocator reservationIds;
+  private static int reservationIdUsers = 0;
+  private boolean leasesReservationIds = false;
+
+  // Books in batches with one commit each (null unless the booking pipeline is on)
+  private BookingPipeline bookingPipeline;
+
+  // Runs book, pay and cancel, retrying the ones the database gave up on because of contention
+  private TransactionExecutor transactions;
+
+  // Reservations read per query when listing a page of them
+  private int reservationsFetchSize = 100;
+
+  // Traces a sample of the statements' executions (null unless statement tracing is on)
+  private StatementTracer tracer;
+
+  // How many Capacities rows clear() has changed, one per flight whatever seats it was missing, for the stats
+  // command; RESET_CAPACITIES has its own timer
+  private static final Metrics.Counter CAPACITY_ROWS_RESET = Metrics.counter("clear.capacity_rows_reset");
+
+  // Canned queries
+
+  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Capacities WHERE fid = ?";
+
+  private static final String MAKE_NEW_USER = "INSERT INTO Users VALUES (?, ?, ?)";
+
+  private static final String LOGIN_CHECK = "SELECT COUNT(*) as status FROM Users WHERE username = ? AND password = ?";
+
+  private static final String SEARCH_ONE_HOP =    "SELECT TOP (?) F.fid AS fid, F.day_of_month AS day_of_month, F.carrier_id AS carrier_id, "
+                                                + "F.flight_num AS flight_num, F.origin_city AS origin_city, F.dest_city AS dest_city, F.actual_time AS actual_time, "
+						+ "F.capacity AS capacity, F.price AS price "
+						+ "FROM Flights AS F "
+						+ "WHERE F.origin_city = ? AND F.dest_city = ? AND F.day_of_month = ? AND F.actual_time IS NOT NULL AND F.canceled = 0 "
+						+ "ORDER BY F.actual_time ASC, F.fid ASC";
+
+  private static final String SEARCH_TWO_HOP =    "SELECT TOP (?) F.fid AS fid, F.day_of_month AS day_of_month, F.carrier_id AS carrier_id, "
+						+ "F.flight_num AS flight_num, F.origin_city AS origin_city, F.dest_city AS dest_city, F.actual_time AS actual_time, "
+  						+ "F.capacity AS capacity, F.price AS price, "
+						+ "F2.fid AS fid2, F2.day_of_month AS day_of_month2, F2.carrier_id AS carrier_id2, "
+						+ "F2.flight_num AS flight_num2, F2.origin_city AS origin_city2, F2.dest_city AS dest_city2, "
+						+ "F2.actual_time AS actual_time2, F.actual_time + F2.actual_time AS total_time, "
+						+ "F2.capacity AS capacity2, F2.price AS price2 "
+						+ "FROM Flights F, Flights F2 "
+						+ "WHERE F.origin_city = ? AND F2.dest_city = ? AND F.day_of_month = ? AND F.actual_time IS NOT NULL AND F.canceled = 0 "
+						+ "AND F.day_of_month = F2.day_of_month AND F.dest_city = F2.origin_city AND F2.actual_time IS NOT NULL "
+						+ "AND F2.canceled = 0 "
+						+ "ORDER BY total_time ASC, F.fid ASC";
+
+  // bookings run at READ COMMITTED, so the check takes key-range update locks on the user's day and holds them to the
+  // end of the transaction: a second booking by the same user for the same day waits here until the first one is
+  // decided, instead of also counting 0 and inserting
+  private static final String CHECK_RESERVATIONS = "SET NOCOUNT ON; SELECT COUNT(*) AS numRes FROM Reservations WITH (UPDLOCK, HOLDLOCK) "
+                                                 + "WHERE username = ? AND reservationDate = ? ";
+
+  // takes one seat on each leg that still has one; pass the same fid twice for a direct flight
+  private static final String CLAIM_SEATS = "UPDATE Capacities SET capacity = capacity - 1 WHERE fid IN (?, ?) AND capacity > 0";
+
+  // the booking pipeline claims one leg per statement, so it knows which leg to give back when the other is full
+  private static final String CLAIM_SEAT = "UPDATE Capacities SET capacity = capacity - 1 WHERE fid = ? AND capacity > 0";
+
+  private static final String RELEASE_SEAT = "UPDATE Capacities SET capacity = capacity + 1 WHERE fid = ?";
+
+  private static final String CREATE_RESERVATION = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+  private static final String CURRENT_RESERVATIONS = "SET NOCOUNT ON; "
+						   + "SELECT F.fid AS fid, F.day_of_month AS day_of_month, F.carrier_id AS carrier_id, "
+						   + "F.flight_num AS flight_num, F.origin_city AS origin_city, F.dest_city AS dest_city, F.actual_time AS actual_time, "
+  						   + "F.capacity AS capacity, F.price AS price, "
+						   + "F2.fid AS fid2, F2.day_of_month AS day_of_month2, F2.carrier_id AS carrier_id2, "
+						   + "F2.flight_num AS flight_num2, F2.origin_city AS origin_city2, F2.dest_city AS dest_city2, "
+						   + "F2.actual_time AS actual_time2, F.actual_time + F2.actual_time AS total_time, "
+						   + "F2.capacity AS capacity2, F.price AS price2, R.reservation_id as resID, R.paid as paid, R.canceled as canceled "
+						   + "FROM Reservations R INNER JOIN Flights F ON R.flight_id = F.fid LEFT OUTER JOIN Flights F2 ON R.flight_id2 = F2.fid "
+                                                   + "WHERE R.username = ? AND R.canceled = 0" ;
+
+  // one page of CURRENT_RESERVATIONS: the next ? reservations of the user after reservation ID ?, in ID order
+  private static final String RESERVATIONS_PAGE = "SET NOCOUNT ON; "
+                                                + "SELECT TOP (?) F.fid AS fid, F.day_of_month AS day_of_month, F.carrier_id AS carrier_id, "
+                                                + "F.flight_num AS flight_num, F.origin_city AS origin_city, F.dest_city AS dest_city, F.actual_time AS actual_time, "
+                                                + "F.capacity AS capacity, F.price AS price, "
+                                                + "F2.fid AS fid2, F2.day_of_month AS day_of_month2, F2.carrier_id AS carrier_id2, "
+                                                + "F2.flight_num AS flight_num2, F2.origin_city AS origin_city2, F2.dest_city AS dest_city2, "
+                                                + "F2.actual_time AS actual_time2, F2.capacity AS capacity2, F.price AS price2, "
+                                                + "R.reservation_id as resID, R.paid as paid, R.canceled as canceled "
+                                                + "FROM Reservations R INNER JOIN Flights F ON R.flight_id = F.fid LEFT OUTER JOIN Flights F2 ON R.flight_id2 = F2.fid "
+                                                + "WHERE R.username = ? AND R.canceled = 0 AND R.reservation_id > ? "
+                                                + "ORDER BY R.reservation_id";
+
+  // pays for an unpaid reservation of the user in one round trip, taking the price off the balance only if it covers it;
+  // returns the outcome, the balance after it and the price. SET options outlive the batch on a pooled connection, so
+  // XACT_ABORT is turned back off however the batch ends, and errors (deadlocks included) are rethrown unchanged
+  private static final String PAY_RESERVATION = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+                                              + "SET TRANSACTION ISOLATION LEVEL READ COMMITTED; "
+                                              + "DECLARE @rid int = ?, @user nvarchar(4000) = ?; "
+                                              + "DECLARE @price int, @paid int, @balance int, @outcome int; "
+                                              + "BEGIN TRY "
+                                              + "BEGIN TRANSACTION; "
+                                              + "SELECT @price = price, @paid = paid FROM Reservations WITH (UPDLOCK) "
+                                              + "WHERE reservation_id = @rid AND username = @user; "
+                                              + "IF @price IS NULL OR @paid = 1 "
+                                              + "  SET @outcome = " + NOT_FOUND + "; "
+                                              + "ELSE BEGIN "
+                                              + "  UPDATE Users SET @balance = initAmount = initAmount - @price "
+                                              + "  WHERE username = @user AND initAmount >= @price; "
+                                              + "  IF @@ROWCOUNT = 0 BEGIN "
+                                              + "    SELECT @balance = initAmount FROM Users WHERE username = @user; "
+                                              + "    SET @outcome = " + INSUFFICIENT_BALANCE + "; "
+                                              + "  END ELSE BEGIN "
+                                              + "    UPDATE Reservations SET paid = 1 WHERE reservation_id = @rid; "
+                                              + "    SET @outcome = " + DONE + "; "
+                                              + "  END "
+                                              + "END; "
+                                              + "COMMIT TRANSACTION; "
+                                              + "SET XACT_ABORT OFF; "
+                                              + "END TRY "
+                                              + "BEGIN CATCH "
+                                              + "  IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION; "
+                                              + "  SET XACT_ABORT OFF; "
+                                              + "  THROW; "
+                                              + "END CATCH; "
+                                              + "SELECT @outcome AS outcome, @balance AS balance, @price AS price;";
+
+  // cancels a reservation of the user in one round trip, refunding it if it was paid and, unless the seat inventory
+  // gives them back, adding its seats back to Capacities; returns the outcome, the balance after it and both legs.
+  // Turns XACT_ABORT back off however it ends, as PAY_RESERVATION does
+  private static final String CANCEL_RESERVATION = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+                                                 + "SET TRANSACTION ISOLATION LEVEL READ COMMITTED; "
+                                                 + "DECLARE @rid int = ?, @user nvarchar(4000) = ?, @releaseSeats int = ?; "
+                                                 + "DECLARE @fid int, @fid2 int, @price int, @paid int, @canceled int, "
+                                                 + "@balance int, @outcome int; "
+                                                 + "BEGIN TRY "
+                                                 + "BEGIN TRANSACTION; "
+                                                 + "SELECT @fid = flight_id, @fid2 = flight_id2, @price = price, @paid = paid, "
+                                                 + "@canceled = canceled FROM Reservations WITH (UPDLOCK) "
+                                                 + "WHERE reservation_id = @rid AND username = @user; "
+                                                 + "IF @fid IS NULL OR @canceled = 1 "
+                                                 + "  SET @outcome = " + NOT_FOUND + "; "
+                                                 + "ELSE BEGIN "
+                                                 + "  UPDATE Reservations SET canceled = 1, paid = 0 WHERE reservation_id = @rid; "
+                                                 + "  IF @releaseSeats = 1 "
+                                                 + "    UPDATE Capacities SET capacity = capacity + 1 WHERE fid IN (@fid, @fid2); "
+                                                 + "  IF @paid = 1 "
+                                                 + "    UPDATE Users SET @balance = initAmount = initAmount + @price WHERE username = @user; "
+                                                 + "  SET @outcome = " + DONE + "; "
+                                                 + "END; "
+                                                 + "COMMIT TRANSACTION; "
+                                                 + "SET XACT_ABORT OFF; "
+                                                 + "END TRY "
+                                                 + "BEGIN CATCH "
+                                                 + "  IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION; "
+                                                 + "  SET XACT_ABORT OFF; "
+                                                 + "  THROW; "
+                                                 + "END CATCH; "
+                                                 + "SELECT @outcome AS outcome, @balance AS balance, @fid AS fid, @fid2 AS fid2;";
+
+  private static final String CLEAR_USERS = "DELETE FROM Users ";
+
+  private static final String CLEAR_ITINERARIES = "DELETE FROM Itineraries";
+
+  private static final String CLEAR_RESERVATIONS = "DELETE FROM Reservations";
+
+  // puts every flight back to its capacity in Flights in one statement, whichever process booked it, skipping the
+  // rows that are already right
+  private static final String RESET_CAPACITIES = "UPDATE C SET capacity = F.capacity "
+                                               + "FROM Capacities C INNER JOIN Flights F ON C.fid = F.fid "
+                                               + "WHERE C.capacity <> F.capacity";
+
+  //private static final String COUNT_RESERVATIONS = "SELECT COUNT(*) AS count FROM Reservations ";
+
+  // transactions
+  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+
+  // booking can't oversell because its seat claim is guarded, so it doesn't need range locks
+  private static final String BEGIN_BOOKING_SQL = "SET TRANSACTION ISOLATION LEVEL READ COMMITTED; BEGIN TRANSACTION;";
+
+  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
+
+  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
+
+  /**
+   * One pooled connection and the statements prepared on it. A session takes one from the
+   * pool for the length of a transaction_* call, so statements are never shared between threads.
+   */
+  static class Statements implements TransactionExecutor.Transactional
+  {
+    final Connection conn;
+
+    // true between a begin and the commit or rollback that ends it
+    private boolean inTransaction = false;
+
+    PreparedStatement beginTransactionStatement;
+    PreparedStatement beginBookingStatement;
+    PreparedStatement commitTransactionStatement;
+    PreparedStatement rollbackTransactionStatement;
+    PreparedStatement checkFlightCapacityStatement;
+    PreparedStatement newUserStatement;
+    PreparedStatement loginStatement;
+    PreparedStatement searchOneHopStatement;
+    PreparedStatement searchTwoHopStatement;
+    PreparedStatement checkReservationsStatement;
+    PreparedStatement claimSeatsStatement;
+    PreparedStatement claimSeatStatement;
+    PreparedStatement releaseSeatStatement;
+    PreparedStatement createReservationStatement;
+    PreparedStatement takeReservationIdsStatement;
+    PreparedStatement resetReservationIdsStatement;
+    PreparedStatement retrieveReservationsStatement;
+    PreparedStatement reservationsPageStatement;
+    PreparedStatement payStatement;
+    PreparedStatement cancelStatement;
+    PreparedStatement clearUsersStatement;
+    PreparedStatement clearItinierariesStatement;
+    PreparedStatement clearReservationsStatement;
+    PreparedStatement resetCapacitiesStatement;
+    //PreparedStatement checkBookingCountStatement;
+
+    // each statement's timer, named after its SQL constant; the same timers are shared by every connection
+    private final Map<PreparedStatement, Metrics.Timer> timers = new IdentityHashMap<PreparedStatement, Metrics.Timer>();
+
+    // what the statements are doing for the current command, when they are traced; null otherwise
+    private final StatementTracer tracer;
+    final StatementTracer.Trace trace;
+
+    Statements(Connection conn, StatementTracer tracer) throws SQLException {
+      this.conn = conn;
+      this.tracer = tracer;
+      this.trace = (tracer != null) ? tracer.newTrace() : null;
+
+      beginTransactionStatement = prepare("BEGIN_TRANSACTION_SQL", BEGIN_TRANSACTION_SQL);
+      beginBookingStatement = prepare("BEGIN_BOOKING_SQL", BEGIN_BOOKING_SQL);
+      commitTransactionStatement = prepare("COMMIT_SQL", COMMIT_SQL);
+      rollbackTransactionStatement = prepare("ROLLBACK_SQL", ROLLBACK_SQL);
+
+      checkFlightCapacityStatement = prepare("CHECK_FLIGHT_CAPACITY", CHECK_FLIGHT_CAPACITY);
+      newUserStatement = prepare("MAKE_NEW_USER", MAKE_NEW_USER, 2);
+      loginStatement = prepare("LOGIN_CHECK", LOGIN_CHECK, 2);
+      searchOneHopStatement = prepare("SEARCH_ONE_HOP", SEARCH_ONE_HOP);
+      searchTwoHopStatement = prepare("SEARCH_TWO_HOP", SEARCH_TWO_HOP);
+      checkReservationsStatement = prepare("CHECK_RESERVATIONS", CHECK_RESERVATIONS);
+      claimSeatsStatement = prepare("CLAIM_SEATS", CLAIM_SEATS);
+      claimSeatStatement = prepare("CLAIM_SEAT", CLAIM_SEAT);
+      releaseSeatStatement = prepare("RELEASE_SEAT", RELEASE_SEAT);
+      createReservationStatement = prepare("CREATE_RESERVATION", CREATE_RESERVATION);
+      takeReservationIdsStatement = prepare("TAKE_RESERVATION_IDS", ReservationIdAllocator.LEASE_BLOCK);
+      resetReservationIdsStatement = prepare("RESET_RESERVATION_IDS", ReservationIdAllocator.RESET_SEQUENCE);
+      retrieveReservationsStatement = prepare("CURRENT_RESERVATIONS", CURRENT_RESERVATIONS);
+      reservationsPageStatement = prepare("RESERVATIONS_PAGE", RESERVATIONS_PAGE);
+      payStatement = prepare("PAY_RESERVATION", PAY_RESERVATION);
+      cancelStatement = prepare("CANCEL_RESERVATION", CANCEL_RESERVATION);
+      clearUsersStatement = prepare("CLEAR_USERS", CLEAR_USERS);
+      clearItinierariesStatement = prepare("CLEAR_ITINERARIES", CLEAR_ITINERARIES);
+      clearReservationsStatement = prepare("CLEAR_RESERVATIONS", CLEAR_RESERVATIONS);
+      resetCapacitiesStatement = prepare("RESET_CAPACITIES", RESET_CAPACITIES);
+
+      //checkBookingCountStatement = prepare("COUNT_RESERVATIONS", COUNT_RESERVATIONS);
+    }
+
+    // passwords are bound at the indexes in hidden, which tracing leaves out of the slow-query log
+    private PreparedStatement prepare(String name, String sql, int... hidden) throws SQLException
+    {
+      PreparedStatement statement = conn.prepareStatement(sql);
+      if (tracer != null) {
+        statement = tracer.wrap(name, statement, trace, hidden);
+      }
+      timers.put(statement, Metrics.timer("statement." + name));
+      return statement;
+    }
+
+    ResultSet executeQuery(PreparedStatement statement) throws SQLException
+    {
+      long start = System.nanoTime();
+      try {
+        return statement.executeQuery();
+      } finally {
+        timers.get(statement).recordSince(start);
+      }
+    }
+
+    int executeUpdate(PreparedStatement statement) throws SQLException
+    {
+      long start = System.nanoTime();
+      try {
+        return statement.executeUpdate();
+      } finally {
+        timers.get(statement).recordSince(start);
+      }
+    }
+
+    int[] executeBatch(PreparedStatement statement) throws SQLException
+    {
+      long start = System.nanoTime();
+      try {
+        return statement.executeBatch();
+      } finally {
+        timers.get(statement).recordSince(start);
+      }
+    }
+
+    void beginTransaction() throws SQLException
+    {
+      conn.setAutoCommit(false);
+      inTransaction = true;
+      executeUpdate(beginTransactionStatement);
+    }
+
+    void beginBooking() throws SQLException
+    {
+      conn.setAutoCommit(false);
+      inTransaction = true;
+      executeUpdate(beginBookingStatement);
+    }
+
+    public boolean inTransaction()
+    {
+      return inTransaction;
+    }
+
+    public void commitTransaction() throws SQLException
+    {
+      executeUpdate(commitTransactionStatement);
+      inTransaction = false;
+      conn.setAutoCommit(true);
+    }
+
+    // the connection goes back to autocommit even if the server already ended the transaction
+    public void rollbackTransaction() throws SQLException
+    {
+      inTransaction = false;
+      try {
+        executeUpdate(rollbackTransactionStatement);
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    }
+
+    /**
+     * Shows an example of using PreparedStatements after setting arguments. You don't need to
+     * use this method if you don't want to.
+     */
+    int checkFlightCapacity(int fid) throws SQLException
+    {
+      checkFlightCapacityStatement.clearParameters();
+      checkFlightCapacityStatement.setInt(1, fid);
+      ResultSet results = executeQuery(checkFlightCapacityStatement);
+      results.next();
+      int capacity = results.getInt("capacity");
+      results.close();
+
+      return capacity;
+    }
+  }
+
+  /**
+   * Opens the connections described by {@code configProps}: flightservice.pool_size of them for
+   * sessions, one for the reservation ID allocator and, in inventory mode, one for the seat
+   * inventory.
+   */
+  public JdbcFlightStore(Properties configProps) throws Exception
+  {
+    this.configProps = configProps;
+
+    String jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
+    String jSQLUrl = configProps.getProperty("flightservice.url");
+    String jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
+    String jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
+
+    /* load jdbc drivers */
+    Class.forName(jSQLDriver).newInstance();
+
+    /* open connections to the flights database, all of them up front so that no session pays for it */
+    int poolSize = Integer.parseInt(configProps.getProperty("flightservice.pool_size", "1").trim());
+    for (int i = 0; i < Math.max(1, poolSize); i++) {
+      Connection conn = DriverManager.getConnection(jSQLUrl, // database
+              jSQLUser, // user
+              jSQLPassword); // password
+
+      conn.setAutoCommit(true); //by default automatically commit after each statement
+      connections.add(conn);
+    }
+
+    int idBlockSize = Integer.parseInt(configProps.getProperty("flightservice.reservation_id_block_size", "100").trim());
+    if (idBlockSize > 1) {
+      openReservationIds(jSQLUrl, jSQLUser, jSQLPassword, idBlockSize);
+      leasesReservationIds = true;
+    }
+
+    transactions = new TransactionExecutor(
+        Integer.parseInt(configProps.getProperty("flightservice.retry_max_attempts", "3").trim()),
+        Long.parseLong(configProps.getProperty("flightservice.retry_base_delay_ms", "20").trim()),
+        Long.parseLong(configProps.getProperty("flightservice.retry_max_delay_ms", "1000").trim()),
+        Double.parseDouble(configProps.getProperty("flightservice.retry_budget_ratio", "0.1").trim()),
+        Double.parseDouble(configProps.getProperty("flightservice.retry_budget_max", "10").trim()));
+
+    if (Boolean.parseBoolean(configProps.getProperty("flightservice.booking_pipeline", "false").trim())) {
+      long batchMillis = Long.parseLong(configProps.getProperty("flightservice.booking_batch_ms", "5").trim());
+      long poolMillis = Long.parseLong(configProps.getProperty("flightservice.pool_timeout_ms", "30000").trim());
+      // a booking can wait out the pool once for its own batch and once more after being deferred to the next
+      bookingPipeline = new BookingPipeline(
+          batchMillis,
+          Integer.parseInt(configProps.getProperty("flightservice.booking_batch_size", "64").trim()),
+          batchMillis + 2 * poolMillis,
+          new BookingPipeline.Handler() {
+            public void book(List<BookingPipeline.Request> batch) throws SQLException {
+              bookBatch(batch);
+            }
+          });
+    }
+
+    if (Boolean.parseBoolean(configProps.getProperty("flightservice.inventory_mode", "false").trim())) {
+      long flushMillis = Long.parseLong(configProps.getProperty("flightservice.inventory_flush_ms", "100").trim());
+      long refreshMillis = Long.parseLong(configProps.getProperty("flightservice.capacity_refresh_ms", "0").trim());
+      openSeatInventory(jSQLUrl, jSQLUser, jSQLPassword, flushMillis, refreshMillis);
+      usesSeatInventory = true;
+    }
+
+    if (Boolean.parseBoolean(configProps.getProperty("flightservice.trace_statements", "false").trim())) {
+      tracer = new StatementTracer(
+          Double.parseDouble(configProps.getProperty("flightservice.trace_sample_rate", "0.01").trim()),
+          Long.parseLong(configProps.getProperty("flightservice.slow_query_ms", "100").trim()),
+          configProps.getProperty("flightservice.slow_query_log", "slow_queries.log").trim());
+    }
+
+    if (Boolean.parseBoolean(configProps.getProperty("flightservice.search_index", "false").trim())) {
+      loadFlightIndex(configProps, connections.get(0));
+    }
+
+    /* You will also want to appropriately set the transaction's isolation level through:
+       conn.setTransactionIsolation(...)
+       See Connection class' JavaDoc for details.
+    */
+  }
+
+  // loads the search index the first time any store in this JVM asks for it, from the snapshot if there is one
+  private static synchronized void loadFlightIndex(Properties configProps, Connection conn)
+      throws IOException, SQLException
+  {
+    if (flightIndex == null) {
+      String snapshot = configProps.getProperty("flightservice.flight_snapshot", "").trim();
+      flightIndex = snapshot.isEmpty() ? FlightIndex.load(conn) : FlightIndex.map(snapshot);
+    }
+  }
+
+  // loads the seat inventory for the first store in this JVM that asks for it, on a connection of its own
+  private static synchronized void openSeatInventory(String url, String user, String password, long flushMillis,
+                                                     long refreshMillis) throws SQLException
+  {
+    if (seatInventory == null) {
+      seatInventory = SeatInventory.load(DriverManager.getConnection(url, user, password), flushMillis,
+                                         refreshMillis);
+    }
+    seatInventoryUsers++;
+  }
+
+  // starts leasing reservation IDs for the first store in this JVM that asks for it, on a connection of its own, so
+  // leasing a block never waits on a booking's transaction
+  private static synchronized void openReservationIds(String url, String user, String password, int blockSize)
+      throws SQLException
+  {
+    if (reservationIds == null) {
+      reservationIds = new ReservationIdAllocator(DriverManager.getConnection(url, user, password), blockSize);
+    }
+    reservationIdUsers++;
+  }
+
+  private static synchronized void closeReservationIds() throws SQLException
+  {
+    if (--reservationIdUsers == 0) {
+      ReservationIdAllocator allocator = reservationIds;
+      reservationIds = null;
+      allocator.close();
+    }
+  }
+
+  // the last store to close writes out the seat changes still pending
+  private static synchronized void closeSeatInventory() throws SQLException
+  {
+    if (--seatInventoryUsers == 0) {
+      SeatInventory inventory = seatInventory;
+      seatInventory = null;
+      inventory.close();
+    }
+  }
+
+  public void close() throws SQLException
+  {
+    if (bookingPipeline != null) {
+      bookingPipeline.close();
+      bookingPipeline = null;
+    }
+    for (Connection conn : connections) {
+      conn.close();
+    }
+    connections.clear();
+    pool = null;
+    if (leasesReservationIds) {
+      leasesReservationIds = false;
+      closeReservationIds();
+    }
+    if (usesSeatInventory) {
+      usesSeatInventory = false;
+      closeSeatInventory();
+    }
+    if (tracer != null) {
+      tracer.close();
+    }
+  }
+
+  // takes a connection for command, which the statement tracer files the connection's round trips under
+  private Statements acquire(String command) throws SQLException
+  {
+    Statements db = pool.acquire();
+    if (db.trace != null) {
+      db.trace.begin(command);
+    }
+    return db;
+  }
+
+  private void release(Statements db)
+  {
+    if (db != null && db.trace != null) {
+      db.trace.end();
+    }
+    pool.release(db);
+  }
+
+  // where the transaction executor takes each attempt's connection from, traced as command
+  private TransactionExecutor.Connections<Statements> checkout(final String command)
+  {
+    return new TransactionExecutor.Connections<Statements>() {
+      public Statements acquire() throws SQLException {
+        return JdbcFlightStore.this.acquire(command);
+      }
+
+      public void release(Statements db) {
+        JdbcFlightStore.this.release(db);
+      }
+
+      public void discard(Statements db) {
+        if (db.trace != null) {
+          db.trace.end();
+        }
+        reconnect(db);
+      }
+    };
+  }
+
+  // puts a new connection with its own statements in the pool in place of a broken one; if the server can't be
+  // reached either, the broken one goes back and the next session to take it tries again
+  private void reconnect(Statements broken)
+  {
+    Statements fresh;
+    try {
+      Connection conn = DriverManager.getConnection(configProps.getProperty("flightservice.url"),
+                                                    configProps.getProperty("flightservice.sqlazure_username"),
+                                                    configProps.getProperty("flightservice.sqlazure_password"));
+      conn.setAutoCommit(true);
+      fresh = new Statements(conn, tracer);
+      fresh.reservationsPageStatement.setFetchSize(reservationsFetchSize);
+    } catch (SQLException e) {
+      pool.release(broken);
+      return;
+    }
+    int i = connections.indexOf(broken.conn);
+    if (i >= 0) {
+      connections.set(i, fresh.conn);
+    }
+    try {
+      broken.conn.close();
+    } catch (SQLException e) {}
+    pool.replace(broken, fresh);
+  }
+
+  /**
+   * prepare all the SQL statements in this method.
+   * "preparing" a statement is almost like compiling it.
+   * Note that the parameters (with ?) are still not filled in
+   *
+   * Every pooled connection gets its own copy of the statements.
+   */
+  public void prepareStatements() throws SQLException
+  {
+    // how many reservations of a page are read with each query, all of them in one fetch
+    reservationsFetchSize = Math.max(1, Integer.parseInt(
+        configProps.getProperty("flightservice.reservations_fetch_size", "100").trim()));
+    List<Statements> prepared = new ArrayList<Statements>();
+    for (Connection conn : connections) {
+      Statements db = new Statements(conn, tracer);
+      db.reservationsPageStatement.setFetchSize(reservationsFetchSize);
+      prepared.add(db);
+    }
+    long timeoutMillis = Long.parseLong(configProps.getProperty("flightservice.pool_timeout_ms", "30000").trim());
+    pool = new ConnectionPool<Statements>(prepared, timeoutMillis);
+  }
+
+  public void clear() throws SQLException
+  {
+    Statements db = acquire("clear");
+    try {
+      // pending seat changes are dropped first, so a flush can't undo the reset below
+      if (seatInventory != null) {
+        seatInventory.reset();
+      }
+      db.resetCapacitiesStatement.clearParameters();
+      CAPACITY_ROWS_RESET.add(db.executeUpdate(db.resetCapacitiesStatement));
+
+      db.clearReservationsStatement.clearParameters();
+      db.executeUpdate(db.clearReservationsStatement);
+
+      db.clearUsersStatement.clearParameters();
+      db.executeUpdate(db.clearUsersStatement);
+
+      db.clearItinierariesStatement.clearParameters();
+      db.executeUpdate(db.clearItinierariesStatement);
+
+      if (leasesReservationIds) {
+        reservationIds.reset();
+      } else {
+        db.executeUpdate(db.resetReservationIdsStatement);
+      }
+    } finally {
+      release(db);
+    }
+  }
+
+  public boolean login(String username, String password) throws SQLException
+  {
+    Statements db = acquire("login");
+    try {
+      db.loginStatement.clearParameters();
+      db.loginStatement.setString(1, username);
+      db.loginStatement.setString(2, password);
+      ResultSet loginSet = db.executeQuery(db.loginStatement);
+      loginSet.next();
+      int status = loginSet.getInt("status");
+      loginSet.close();
+      return status > 0 && status <= 1;
+    } finally {
+      release(db);
+    }
+  }
+
+  // a taken username fails the insert on the primary key
+  public boolean createCustomer(String username, String password, int initAmount) throws SQLException
+  {
+    Statements db = acquire("create");
+    try {
+      db.newUserStatement.clearParameters();
+      db.newUserStatement.setString(1, username);
+      db.newUserStatement.setString(2, password);
+      db.newUserStatement.setInt(3, initAmount);
+      db.executeUpdate(db.newUserStatement);
+      return true;
+    } finally {
+      release(db);
+    }
+  }
+
+  public int search(Query.Flight[] bookingOptions, String originCity, String destCity, boolean directFlight,
+                    int dayOfMonth) throws SQLException
+  {
+    if (flightIndex != null) {
+      return flightIndex.search(bookingOptions, originCity, destCity, directFlight, dayOfMonth, bookingOptions.length);
+    }
+    Statements db = acquire("search");
+    try {
+      return searchDatabase(db, bookingOptions, originCity, destCity, directFlight, dayOfMonth);
+    } finally {
+      release(db);
+    }
+  }
+
+  // fills bookingOptions with the direct flights and the two hop flights found by the database, shortest first
+  private static int searchDatabase(Statements db, Query.Flight[] bookingOptions, String originCity,
+                                    String destinationCity, boolean directFlight, int dayOfMonth) throws SQLException
+  {
+    int numberOfItineraries = bookingOptions.length;
+    int flightCount = 0;
+    db.searchOneHopStatement.clearParameters();
+    db.searchOneHopStatement.setInt(1, numberOfItineraries);
+    db.searchOneHopStatement.setString(2, originCity);
+    db.searchOneHopStatement.setString(3, destinationCity);
+    db.searchOneHopStatement.setInt(4, dayOfMonth);
+    ResultSet oneHopSearchResults = db.executeQuery(db.searchOneHopStatement);
+        
+    while(oneHopSearchResults.next()) {
+      int result_fid = oneHopSearchResults.getInt("fid");
+      int result_dayOfMonth = oneHopSearchResults.getInt("day_of_month");
+      String result_carrierId = oneHopSearchResults.getString("carrier_id");
+      int result_flightNum = oneHopSearchResults.getInt("flight_num");
+      String result_origin = oneHopSearchResults.getString("origin_city");
+      String result_dest = oneHopSearchResults.getString("dest_city");
+      int result_time = oneHopSearchResults.getInt("actual_time");
+      int result_capacity = oneHopSearchResults.getInt("capacity");
+      int result_price = oneHopSearchResults.getInt("price");
+      Query.Flight tempFlight = new Query.Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, 
+                                     result_origin, result_dest, result_time, result_capacity, result_price);       
+      bookingOptions[flightCount] = tempFlight;
+	flightCount++;        
+    }
+    oneHopSearchResults.close();
+
+    // the direct flights already fill every slot, so there is nothing left to ask for
+    if(directFlight || flightCount >= numberOfItineraries) {
+      return flightCount;
+    }
+
+    ItineraryMerge merge = new ItineraryMerge(bookingOptions, flightCount);
+    db.searchTwoHopStatement.clearParameters();
+    db.searchTwoHopStatement.setInt(1, numberOfItineraries - flightCount);
+    db.searchTwoHopStatement.setString(2, originCity);
+    db.searchTwoHopStatement.setString(3, destinationCity);
+    db.searchTwoHopStatement.setInt(4, dayOfMonth);
+    ResultSet twoHopSearchResults = db.executeQuery(db.searchTwoHopStatement);
+    
+    while(twoHopSearchResults.next()) {
+      int result_fid = twoHopSearchResults.getInt("fid");
+      int result_time = twoHopSearchResults.getInt("actual_time");
+      int result_time2 = twoHopSearchResults.getInt("actual_time2");
+      int slot = merge.slotFor(result_time + result_time2, result_fid);
+
+      int result_dayOfMonth = twoHopSearchResults.getInt("day_of_month");
+      String result_carrierId = twoHopSearchResults.getString("carrier_id");
+      int result_flightNum = twoHopSearchResults.getInt("flight_num");
+      String result_origin = twoHopSearchResults.getString("origin_city");
+      String result_dest = twoHopSearchResults.getString("dest_city");
+      int result_capacity = twoHopSearchResults.getInt("capacity");
+      int result_price = twoHopSearchResults.getInt("price");
+
+      int result_fid2 = twoHopSearchResults.getInt("fid2");
+      int result_dayOfMonth2 = twoHopSearchResults.getInt("day_of_month2");
+      String result_carrierId2 = twoHopSearchResults.getString("carrier_id2");
+      int result_flightNum2 = twoHopSearchResults.getInt("flight_num2");
+      String result_origin2 = twoHopSearchResults.getString("origin_city2");
+      String result_dest2 = twoHopSearchResults.getString("dest_city2");
+      int result_capacity2 = twoHopSearchResults.getInt("capacity2");
+      int result_price2 = twoHopSearchResults.getInt("price2");
+
+      bookingOptions[slot] = new Query.Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, 
+                                        result_origin, result_dest, result_time, result_capacity, result_price, 
+                                        result_fid2, result_dayOfMonth2, result_carrierId2, result_flightNum2, 
+                                        result_origin2, result_dest2, result_time2, result_capacity2, result_price2);
+    } 
+    twoHopSearchResults.close();
+    return merge.finish();
+  }
+
+  /**
+   * Same as {@code transaction_search} except that it only performs single hop search and
+   * do it in an unsafe manner.
+   *
+   * @param originCity
+   * @param destinationCity
+   * @param directFlight
+   * @param dayOfMonth
+   * @param numberOfItineraries
+   *
+   * @return The search results. Note that this implementation *does not conform* to the format required by
+   * {@code transaction_search}.
+   */
+  private String transaction_search_unsafe(String originCity, String destinationCity, boolean directFlight,
+                                          int dayOfMonth, int numberOfItineraries)
+  {
+    StringBuffer sb = new StringBuffer();
+
+    Statements db = null;
+    try
+    {
+      db = acquire("search");
+
+      // one hop itineraries
+      String unsafeSearchSQL =
+              "SELECT TOP (" + numberOfItineraries + ") day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
+                      + "FROM Flights "
+                      + "WHERE origin_city = \'" + originCity + "\' AND dest_city = \'" + destinationCity + "\' AND day_of_month =  " + dayOfMonth + " "
+                      + "ORDER BY actual_time ASC";
+
+      Statement searchStatement = db.conn.createStatement();
+      ResultSet oneHopResults = searchStatement.executeQuery(unsafeSearchSQL);
+
+      while (oneHopResults.next())
+      {
+        int result_dayOfMonth = oneHopResults.getInt("day_of_month");
+        String result_carrierId = oneHopResults.getString("carrier_id");
+        String result_flightNum = oneHopResults.getString("flight_num");
+        String result_originCity = oneHopResults.getString("origin_city");
+        String result_destCity = oneHopResults.getString("dest_city");
+        int result_time = oneHopResults.getInt("actual_time");
+        int result_capacity = oneHopResults.getInt("capacity");
+        int result_price = oneHopResults.getInt("price");
+
+        sb.append("Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: " + result_flightNum + " Origin: " + result_originCity 
+		+ " Destination: " + result_destCity + " Duration: " + result_time + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
+      }
+      oneHopResults.close();
+    } catch (SQLException E) { 
+      //E.printStackTrace();
+    } finally {
+      release(db);
+    }
+
+    return sb.toString();
+  }
+
+  public int book(final String username, final Query.Flight targetBook) throws SQLException
+  {
+    if(bookingPipeline != null) {
+      return bookingPipeline.book(username, targetBook);
+    }
+
+    return transactions.run(checkout("book"), new TransactionExecutor.Work<Integer, Statements>() {
+      public Integer run(Statements db) throws SQLException {
+        return book(db, username, targetBook);
+      }
+    });
+  }
+
+  // a retryable failure is thrown on to the executor, which rolls back and runs it again
+  private int book(Statements db, String username, Query.Flight targetBook) throws SQLException
+  {
+    db.beginBooking();
+    db.checkReservationsStatement.clearParameters();
+    db.checkReservationsStatement.setString(1, username);
+    db.checkReservationsStatement.setInt(2, targetBook.dayOfMonth);
+    ResultSet bookings = db.executeQuery(db.checkReservationsStatement);
+    bookings.next();
+    int numOfRes = bookings.getInt("numRes");
+    bookings.close();
+
+    if(numOfRes >= 1) {
+      //need to stop transaction here, since this is an invalid action
+      db.rollbackTransaction();
+      return SAME_DAY;
+    }
+
+    int resId;
+    SeatInventory inventory = seatInventory;
+    if(inventory == null) {
+      // claims a seat on every leg in one statement; a full leg is left alone, so the row count comes up short
+      int legs = (targetBook.fid2 != 0) ? 2 : 1;
+      db.claimSeatsStatement.clearParameters();
+      db.claimSeatsStatement.setInt(1, targetBook.fid);
+      db.claimSeatsStatement.setInt(2, (legs == 2) ? targetBook.fid2 : targetBook.fid);
+      if(db.executeUpdate(db.claimSeatsStatement) != legs) {
+        db.rollbackTransaction();
+        return BOOKING_FAILED;
+      }
+      resId = createReservation(db, username, targetBook);
+    } else {
+      // the seats are taken in memory; Capacities hears about them once the reservation has committed
+      if(!inventory.claim(targetBook.fid, targetBook.fid2)) {
+        db.rollbackTransaction();
+        return BOOKING_FAILED;
+      }
+      boolean committed = false;
+      try {
+        resId = createReservation(db, username, targetBook);
+        committed = true;
+      } finally {
+        if(!committed) {
+          inventory.unclaim(targetBook.fid, targetBook.fid2);
+        }
+      }
+      inventory.booked(targetBook.fid, targetBook.fid2);
+    }
+
+    return resId;
+  }
+
+  // inserts the reservation for targetBook once its seats are taken, and commits
+  private int createReservation(Statements db, String username, Query.Flight targetBook) throws SQLException
+  {
+    int resId = leasesReservationIds ? reservationIds.next() : takeReservationIds(db, 1);
+    bindReservation(db, username, targetBook, resId);
+    db.executeUpdate(db.createReservationStatement);
+    db.commitTransaction();
+    return resId;
+  }
+
+  // takes count consecutive IDs from the sequence inside the current transaction, which holds the sequence row
+  // until it ends, so a rollback gives them back; returns the first
+  private static int takeReservationIds(Statements db, int count) throws SQLException
+  {
+    db.takeReservationIdsStatement.clearParameters();
+    db.takeReservationIdsStatement.setInt(1, count);
+    ResultSet result = db.executeQuery(db.takeReservationIdsStatement);
+    try {
+      result.next();
+      return result.getInt("first_id");
+    } finally {
+      result.close();
+    }
+  }
+
+  private static void bindReservation(Statements db, String username, Query.Flight targetBook, int resId) throws SQLException
+  {
+    db.createReservationStatement.clearParameters();
+    db.createReservationStatement.setInt(1, targetBook.dayOfMonth);
+    db.createReservationStatement.setString(2, username);
+    db.createReservationStatement.setInt(3, targetBook.fid);
+    if(targetBook.fid2 != 0) {
+      db.createReservationStatement.setInt(4, targetBook.fid2);
+    } else {
+      db.createReservationStatement.setNull(4, Types.INTEGER);
+    }
+    db.createReservationStatement.setInt(5, targetBook.price + targetBook.price2);
+    db.createReservationStatement.setInt(6, 0);
+    db.createReservationStatement.setInt(7, 0);
+    db.createReservationStatement.setInt(8, resId);
+  }
+
+  // books a batch from the booking pipeline in one transaction, then hands each request its outcome
+  private void bookBatch(final List<BookingPipeline.Request> batch) throws SQLException
+  {
+    int[] outcomes = transactions.run(checkout("book_batch"), new TransactionExecutor.Work<int[], Statements>() {
+      public int[] run(Statements db) throws SQLException {
+        return bookBatch(db, batch);
+      }
+    });
+    for(int i = 0; i < batch.size(); i++) {
+      batch.get(i).outcome = outcomes[i];
+    }
+  }
+
+  /**
+   * Decides every booking of the batch in order, as if each had run on its own: the same-day
+   * check, then the seats, then the reservation, with one batch of statements per step and a
+   * single commit at the end.
+   *
+   * A booking is left UNDECIDED when the outcome depends on one before it in the same
+   * batch: a second booking by the same user for the same day, or a leg that came up full while
+   * a booking before it held a seat there that it had to give back.
+   */
+  private int[] bookBatch(Statements db, List<BookingPipeline.Request> batch) throws SQLException
+  {
+    int n = batch.size();
+    int[] outcomes = new int[n];
+    boolean[] accepted = new boolean[n];
+
+    db.beginBooking();
+
+    // same-day conflicts with reservations already made; only the first booking of a user for a day goes ahead
+    Set<String> days = new HashSet<String>();
+    for(int i = 0; i < n; i++) {
+      BookingPipeline.Request request = batch.get(i);
+      if(!days.add(request.username + "\n" + request.itinerary.dayOfMonth)) {
+        continue;
+      }
+      db.checkReservationsStatement.clearParameters();
+      db.checkReservationsStatement.setString(1, request.username);
+      db.checkReservationsStatement.setInt(2, request.itinerary.dayOfMonth);
+      ResultSet bookings = db.executeQuery(db.checkReservationsStatement);
+      bookings.next();
+      int numOfRes = bookings.getInt("numRes");
+      bookings.close();
+      if(numOfRes >= 1) {
+        outcomes[i] = SAME_DAY;
+      } else {
+        accepted[i] = true;
+      }
+    }
+
+    SeatInventory inventory = seatInventory;
+    if(inventory == null) {
+      claimSeats(db, batch, outcomes, accepted);
+    } else {
+      for(int i = 0; i < n; i++) {
+        Query.Flight itinerary = batch.get(i).itinerary;
+        if(accepted[i] && !inventory.claim(itinerary.fid, itinerary.fid2)) {
+          accepted[i] = false;
+          outcomes[i] = BOOKING_FAILED;
+        }
+      }
+    }
+
+    boolean committed = false;
+    try {
+      int[] resIds = new int[n];
+      int nextId = 0;
+      if(!leasesReservationIds) {
+        int count = 0;
+        for(int i = 0; i < n; i++) {
+          if(accepted[i]) {
+            count++;
+          }
+        }
+        nextId = (count > 0) ? takeReservationIds(db, count) : 0;
+      }
+      db.createReservationStatement.clearBatch();
+      for(int i = 0; i < n; i++) {
+        if(accepted[i]) {
+          Query.Flight itinerary = batch.get(i).itinerary;
+          resIds[i] = leasesReservationIds ? reservationIds.next() : nextId++;
+          bindReservation(db, batch.get(i).username, itinerary, resIds[i]);
+          db.createReservationStatement.addBatch();
+        }
+      }
+      db.executeBatch(db.createReservationStatement);
+      db.commitTransaction();
+      committed = true;
+
+      for(int i = 0; i < n; i++) {
+        if(accepted[i]) {
+          outcomes[i] = resIds[i];
+        }
+      }
+    } finally {
+      if(inventory != null) {
+        for(int i = 0; i < n; i++) {
+          if(accepted[i]) {
+            Query.Flight itinerary = batch.get(i).itinerary;
+            if(committed) {
+              inventory.booked(itinerary.fid, itinerary.fid2);
+            } else {
+              inventory.unclaim(itinerary.fid, itinerary.fid2);
+            }
+          }
+        }
+      }
+    }
+    return outcomes;
+  }
+
+  // takes a seat on each leg of the accepted bookings in one batch, and gives back the legs of those that came up short
+  private static void claimSeats(Statements db, List<BookingPipeline.Request> batch, int[] outcomes,
+                                 boolean[] accepted) throws SQLException
+  {
+    int n = batch.size();
+    db.claimSeatStatement.clearBatch();
+    for(int i = 0; i < n; i++) {
+      if(accepted[i]) {
+        Query.Flight itinerary = batch.get(i).itinerary;
+        db.claimSeatStatement.setInt(1, itinerary.fid);
+        db.claimSeatStatement.addBatch();
+        if(itinerary.fid2 != 0) {
+          db.claimSeatStatement.setInt(1, itinerary.fid2);
+          db.claimSeatStatement.addBatch();
+        }
+      }
+    }
+    int[] counts = db.executeBatch(db.claimSeatStatement);
+
+    // fid -> first booking that gave a seat on it back
+    Map<Integer, Integer> releasedBy = new HashMap<Integer, Integer>();
+    int[] failedLeg = new int[n];
+    db.releaseSeatStatement.clearBatch();
+    int next = 0;
+    for(int i = 0; i < n; i++) {
+      if(!accepted[i]) {
+        continue;
+      }
+      Query.Flight itinerary = batch.get(i).itinerary;
+      boolean got1 = counts[next++] > 0;
+      boolean got2 = (itinerary.fid2 == 0) || counts[next++] > 0;
+      if(got1 && got2) {
+        continue;
+      }
+      accepted[i] = false;
+      failedLeg[i] = got1 ? itinerary.fid2 : itinerary.fid;
+      int heldLeg = got1 ? itinerary.fid : (got2 && itinerary.fid2 != 0) ? itinerary.fid2 : 0;
+      if(heldLeg != 0) {
+        db.releaseSeatStatement.setInt(1, heldLeg);
+        db.releaseSeatStatement.addBatch();
+        if(!releasedBy.containsKey(heldLeg)) {
+          releasedBy.put(heldLeg, i);
+        }
+      }
+    }
+    if(!releasedBy.isEmpty()) {
+      db.executeBatch(db.releaseSeatStatement);
+    }
+
+    for(int i = 0; i < n; i++) {
+      if(failedLeg[i] != 0) {
+        Integer releaser = releasedBy.get(failedLeg[i]);
+        outcomes[i] = (releaser != null && releaser < i) ? BookingPipeline.UNDECIDED : BOOKING_FAILED;
+      }
+    }
+  }
+
+  public List<Reservation> reservations(String username) throws SQLException
+  {
+    Statements db = acquire("reservations");
+    try {
+      List<Reservation> reservations = new ArrayList<Reservation>();
+      db.retrieveReservationsStatement.clearParameters();
+      db.retrieveReservationsStatement.setString(1, username);
+      ResultSet currentReservations = db.executeQuery(db.retrieveReservationsStatement);
+
+      while(currentReservations.next()) {
+        if(currentReservations.getInt("canceled") == 1) {
+          continue;
+        }
+        reservations.add(reservation(currentReservations));
+      }
+      currentReservations.close();
+      return reservations;
+    } finally {
+      release(db);
+    }
+  }
+
+  public int reservations(String username, int afterId, int limit, ReservationSink sink)
+      throws SQLException, IOException
+  {
+    // read a fetch size at a time and handed over with the connection back in the pool, so a slow client holds up
+    // no other session; each chunk starts after the last reservation of the one before
+    List<Reservation> chunk = new ArrayList<Reservation>(Math.max(0, Math.min(limit, reservationsFetchSize)));
+    int count = 0;
+    while(count < limit) {
+      int wanted = Math.min(limit - count, reservationsFetchSize);
+      chunk.clear();
+      Statements db = acquire("reservations");
+      try {
+        db.reservationsPageStatement.clearParameters();
+        db.reservationsPageStatement.setInt(1, wanted);
+        db.reservationsPageStatement.setString(2, username);
+        db.reservationsPageStatement.setInt(3, afterId);
+        ResultSet page = db.executeQuery(db.reservationsPageStatement);
+        try {
+          while(page.next()) {
+            chunk.add(reservation(page));
+          }
+        } finally {
+          page.close();
+        }
+      } finally {
+        release(db);
+      }
+
+      for(Reservation reservation : chunk) {
+        sink.add(reservation);
+      }
+      count += chunk.size();
+      if(chunk.size() < wanted) {
+        break;
+      }
+      afterId = chunk.get(chunk.size() - 1).reservationId;
+    }
+    return count;
+  }
+
+
+  // the reservation on the current row of CURRENT_RESERVATIONS or RESERVATIONS_PAGE
+  private static Reservation reservation(ResultSet currentReservations) throws SQLException
+  {
+    boolean isPaid = currentReservations.getInt("paid") == 1;
+
+    int result_fid = currentReservations.getInt("fid");
+    int result_dayOfMonth = currentReservations.getInt("day_of_month");
+    String result_carrierId = currentReservations.getString("carrier_id");
+    int result_flightNum = currentReservations.getInt("flight_num");
+    String result_origin = currentReservations.getString("origin_city");
+    String result_dest = currentReservations.getString("dest_city");
+    int result_time = currentReservations.getInt("actual_time");
+    int result_capacity = currentReservations.getInt("capacity");
+    int result_price = currentReservations.getInt("price");
+    Query.Flight first = new Query.Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum,
+                                          result_origin, result_dest, result_time, result_capacity, result_price);
+
+    Query.Flight second = null;
+    currentReservations.getInt("fid2");
+    if(!currentReservations.wasNull()) {
+      int result_fid2 = currentReservations.getInt("fid2");
+      int result_dayOfMonth2 = currentReservations.getInt("day_of_month2");
+      String result_carrierId2 = currentReservations.getString("carrier_id2");
+      int result_flightNum2 = currentReservations.getInt("flight_num2");
+      String result_origin2 = currentReservations.getString("origin_city2");
+      String result_dest2 = currentReservations.getString("dest_city2");
+      int result_time2 = currentReservations.getInt("actual_time2");
+      int result_capacity2 = currentReservations.getInt("capacity2");
+      int result_price2 = currentReservations.getInt("price2");
+      second = new Query.Flight(result_fid2, result_dayOfMonth2, result_carrierId2, result_flightNum2,
+                                result_origin2, result_dest2, result_time2, result_capacity2, result_price2);
+    }
+    return new Reservation(currentReservations.getInt("resID"), isPaid, first, second);
+  }
+
+  public int[] cancel(final String username, final int reservationId) throws SQLException
+  {
+    return transactions.run(checkout("cancel"), new TransactionExecutor.Work<int[], Statements>() {
+      public int[] run(Statements db) throws SQLException {
+        return cancel(db, username, reservationId);
+      }
+    });
+  }
+
+  // the whole cancellation is one batch that runs its own transaction, so the executor only has to retry it
+  private static int[] cancel(Statements db, String username, int reservationId) throws SQLException
+  {
+    SeatInventory inventory = seatInventory;
+    db.cancelStatement.clearParameters();
+    db.cancelStatement.setInt(1, reservationId);
+    db.cancelStatement.setString(2, username);
+    db.cancelStatement.setInt(3, (inventory == null) ? 1 : 0);
+    ResultSet result = db.executeQuery(db.cancelStatement);
+    result.next();
+    int outcome = result.getInt("outcome");
+    int flight1 = result.getInt("fid");
+    int flight2 = result.getInt("fid2");
+    result.close();
+
+    if(outcome != DONE) {
+      return null;
+    }
+    if(inventory != null) {
+      inventory.canceled(flight1, flight2);
+    }
+    return new int[] { flight1, flight2 };
+  }
+
+  public Payment pay(final String username, final int reservationId) throws SQLException
+  {
+    return transactions.run(checkout("pay"), new TransactionExecutor.Work<Payment, Statements>() {
+      public Payment run(Statements db) throws SQLException {
+        return pay(db, username, reservationId);
+      }
+    });
+  }
+
+  private static Payment pay(Statements db, String username, int reservationId) throws SQLException
+  {
+    db.payStatement.clearParameters();
+    db.payStatement.setInt(1, reservationId);
+    db.payStatement.setString(2, username);
+    ResultSet result = db.executeQuery(db.payStatement);
+    result.next();
+    Payment payment = new Payment(result.getInt("outcome"), result.getInt("balance"), result.getInt("price"));
+    result.close();
+    return payment;
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Counts latencies in nanoseconds in log-linear buckets: every power of two is split into 32
+ * buckets, so a percentile read back is within about 3% of the latency recorded. Recording is
+ * an array increment, with no allocation, so it can sit on the path being measured.
+ *
+ * Not thread safe; give every thread its own histogram and {@link #add} them up at the end.
+ */
+public class LatencyHistogram
+{
+  // buckets per power of two
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // latencies below this get a bucket each
+  private static final int LINEAR = SUB_BUCKETS * 2;
+
+  static final int BUCKETS = LINEAR + (63 - (SUB_BUCKET_BITS + 1)) * SUB_BUCKETS;
+
+  private final long[] counts = new long[BUCKETS];
+  private long count = 0;
+  private long max = 0;
+  private long total = 0;
+
+  public LatencyHistogram() {}
+
+  // a copy of what a Metrics.Timer has counted
+  LatencyHistogram(long[] counts, long count, long total, long max)
+  {
+    System.arraycopy(counts, 0, this.counts, 0, BUCKETS);
+    this.count = count;
+    this.total = total;
+    this.max = max;
+  }
+
+  public void record(long nanos)
+  {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    counts[bucket(nanos)]++;
+    count++;
+    total += nanos;
+    if (nanos > max) {
+      max = nanos;
+    }
+  }
+
+  static int bucket(long nanos)
+  {
+    if (nanos < LINEAR) {
+      return (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int subBucket = (int) (nanos >>> shift) - SUB_BUCKETS;
+    return LINEAR + (shift - 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // the largest latency that falls in the bucket
+  private static long highestIn(int bucket)
+  {
+    if (bucket < LINEAR) {
+      return bucket;
+    }
+    int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+    long subBucket = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Adds every latency recorded by {@code other} to this histogram.
+   */
+  public void add(LatencyHistogram other)
+  {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] += other.counts[i];
+    }
+    count += other.count;
+    total += other.total;
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the latency, in nanoseconds, that {@code percentile} percent of the latencies
+   * recorded are at or below, or 0 if none were recorded
+   */
+  public long percentile(double percentile)
+  {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highestIn(i), max);
+      }
+    }
+    return max;
+  }
+
+  public long count()
+  {
+    return count;
+  }
+
+  public long max()
+  {
+    return max;
+  }
+
+  /**
+   * @return the mean latency in nanoseconds, or 0 if none were recorded
+   */
+  public long mean()
+  {
+    return (count == 0) ? 0 : total / count;
+  }
+}
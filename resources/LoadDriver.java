@@ -0,0 +1,457 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs a workload against {@link FlightService#execute} from several terminals at once, each a
+ * thread with a session of its own on one shared Query, and reports the throughput and the
+ * latency percentiles of every kind of command.
+ *
+ * The workload is either a case file, in the format of the files in cases/, whose terminals run
+ * as written and whose outputs are checked against the expected outcomes, or a generated mix of
+ * commands in which every terminal searches the same route and books on it, to measure how the
+ * service holds up when everyone wants the same flights. Each iteration starts from empty tables
+ * and releases all terminals at the same moment.
+ *
+ *   java LoadDriver [options] <case file>
+ *   java LoadDriver [options] --mix search=50,book=20,pay=10,cancel=10,reservations=10
+ */
+public class LoadDriver
+{
+  private static final String[] MIX_COMMANDS = { "search", "book", "pay", "cancel", "reservations" };
+
+  /**
+   * The commands one terminal sends, one at a time, each chosen once the previous one has been
+   * answered.
+   */
+  interface Script
+  {
+    /**
+     * @return the next command, or null when the terminal is done
+     */
+    String next(String lastResponse);
+  }
+
+  /**
+   * One terminal of a case file: its commands, and the outputs it may print, one per outcome.
+   */
+  static class CaseTerminal
+  {
+    final List<String> commands = new ArrayList<String>();
+    final List<List<String>> outcomes = new ArrayList<List<String>>();
+  }
+
+  // settings, from the command line
+  private String config = FlightService.DBCONFIG_FILENAME;
+  private int iterations = 1;
+  private int terminals = 2;
+  private int ops = 20;
+  private long seed = 42;
+  private String origin = "Seattle WA";
+  private String destination = "Boston MA";
+  private int day = 1;
+  private int[] mixWeights;
+  private List<CaseTerminal> caseTerminals;
+
+  // results
+  private final Map<String, LatencyHistogram> latencies = new TreeMap<String, LatencyHistogram>();
+  private long commands = 0;
+  private long elapsedNanos = 0;
+  private int matched = 0;
+
+  public static void usage(PrintStream out)
+  {
+    out.println("Usage: java LoadDriver [options] <case file>");
+    out.println("       java LoadDriver [options] --mix <command>=<weight>,...");
+    out.println("  --config <file>          database settings (default " + FlightService.DBCONFIG_FILENAME + ")");
+    out.println("  --iterations <m>         times to run the workload, each from empty tables (default 1)");
+    out.println("  --terminals <n>          terminals for a mix (default 2); a case file has its own");
+    out.println("  --ops <k>                commands per terminal and iteration for a mix, after create and login (default 20)");
+    out.println("  --route <origin>:<destination>:<day>   what a mix searches and books (default Seattle WA:Boston MA:1)");
+    out.println("  --seed <s>               seed for the choices of a mix (default 42)");
+    out.println("  mix commands: search, book, pay, cancel, reservations");
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    LoadDriver driver = new LoadDriver();
+    try {
+      driver.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      usage(System.err);
+      System.exit(1);
+    }
+
+    Query q = new Query(driver.config);
+    q.openConnection();
+    q.prepareStatements();
+    try {
+      driver.run(q);
+    } finally {
+      q.closeConnection();
+    }
+    driver.report(System.out);
+    if (driver.caseTerminals != null && driver.matched < driver.iterations) {
+      System.exit(2);
+    }
+  }
+
+  private void parse(String[] args) throws IOException
+  {
+    String caseFile = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (!arg.startsWith("--")) {
+        caseFile = arg;
+        continue;
+      }
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("Missing value for " + arg);
+      }
+      String value = args[++i];
+      if (arg.equals("--config")) {
+        config = value;
+      } else if (arg.equals("--iterations")) {
+        iterations = Integer.parseInt(value);
+      } else if (arg.equals("--terminals")) {
+        terminals = Integer.parseInt(value);
+      } else if (arg.equals("--ops")) {
+        ops = Integer.parseInt(value);
+      } else if (arg.equals("--seed")) {
+        seed = Long.parseLong(value);
+      } else if (arg.equals("--route")) {
+        String[] route = value.split(":");
+        if (route.length != 3) {
+          throw new IllegalArgumentException("Expected --route <origin>:<destination>:<day>");
+        }
+        origin = route[0];
+        destination = route[1];
+        day = Integer.parseInt(route[2]);
+      } else if (arg.equals("--mix")) {
+        mixWeights = parseMix(value);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+
+    if ((caseFile == null) == (mixWeights == null)) {
+      throw new IllegalArgumentException("Give either a case file or --mix");
+    }
+    if (caseFile != null) {
+      caseTerminals = readCase(caseFile);
+      terminals = caseTerminals.size();
+    }
+    if (iterations < 1 || terminals < 1) {
+      throw new IllegalArgumentException("Need at least one iteration and one terminal");
+    }
+  }
+
+  // "search=50,book=20" -> weights in the order of MIX_COMMANDS
+  private static int[] parseMix(String mix)
+  {
+    int[] weights = new int[MIX_COMMANDS.length];
+    for (String part : mix.split(",")) {
+      String[] pair = part.split("=");
+      int command = Arrays.asList(MIX_COMMANDS).indexOf(pair[0].trim());
+      if (pair.length != 2 || command < 0) {
+        throw new IllegalArgumentException("Unknown mix entry " + part);
+      }
+      weights[command] = Integer.parseInt(pair[1].trim());
+    }
+    return weights;
+  }
+
+  /**
+   * Reads a case file: blocks separated by lines starting with "*", alternating between the
+   * commands of a terminal and the outputs it may print, outcomes separated by lines starting
+   * with "|". Lines starting with "#" are comments, and so is the rest of a "*" or "|" line.
+   */
+  static List<CaseTerminal> readCase(String path) throws IOException
+  {
+    List<List<String>> blocks = new ArrayList<List<String>>();
+    List<String> block = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new FileReader(path));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().startsWith("*")) {
+          blocks.add(block);
+          block = new ArrayList<String>();
+        } else {
+          block.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (blocks.size() % 2 != 0 && !block.isEmpty()) {
+      // the last "*" is optional
+      blocks.add(block);
+    }
+    if (blocks.size() % 2 != 0) {
+      throw new IllegalArgumentException(path + ": every terminal needs a block of commands and one of outputs");
+    }
+
+    List<CaseTerminal> terminals = new ArrayList<CaseTerminal>();
+    for (int i = 0; i < blocks.size(); i += 2) {
+      CaseTerminal terminal = new CaseTerminal();
+      for (String command : blocks.get(i)) {
+        if (!command.trim().isEmpty() && !command.trim().startsWith("#")) {
+          terminal.commands.add(command.trim());
+        }
+      }
+      List<String> outcome = new ArrayList<String>();
+      for (String output : blocks.get(i + 1)) {
+        if (output.trim().startsWith("|")) {
+          terminal.outcomes.add(outcome);
+          outcome = new ArrayList<String>();
+        } else if (!output.trim().startsWith("#")) {
+          addLines(outcome, output);
+        }
+      }
+      terminal.outcomes.add(outcome);
+      terminals.add(terminal);
+    }
+    return terminals;
+  }
+
+  // outputs compare line by line, ignoring blank lines and trailing spaces
+  private static void addLines(List<String> lines, String text)
+  {
+    for (String line : text.split("\n")) {
+      String trimmed = line.replaceAll("\\s+$", "");
+      if (!trimmed.isEmpty()) {
+        lines.add(trimmed);
+      }
+    }
+  }
+
+  private void run(final Query q) throws InterruptedException
+  {
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      q.clearTables();
+
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<List<String>> outputs = new ArrayList<List<String>>();
+      final List<Map<String, LatencyHistogram>> terminalLatencies = new ArrayList<Map<String, LatencyHistogram>>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int t = 0; t < terminals; t++) {
+        final Script script = script(iteration, t);
+        final List<String> output = new ArrayList<String>();
+        final Map<String, LatencyHistogram> histograms = new HashMap<String, LatencyHistogram>();
+        outputs.add(output);
+        terminalLatencies.add(histograms);
+        Thread thread = new Thread(new Runnable() {
+          public void run() {
+            try {
+              start.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+            runTerminal(q, script, output, histograms);
+          }
+        }, "terminal-" + t);
+        thread.start();
+        threads.add(thread);
+      }
+
+      long begin = System.nanoTime();
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      elapsedNanos += System.nanoTime() - begin;
+
+      for (Map<String, LatencyHistogram> histograms : terminalLatencies) {
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+          LatencyHistogram total = latencies.get(entry.getKey());
+          if (total == null) {
+            total = new LatencyHistogram();
+            latencies.put(entry.getKey(), total);
+          }
+          total.add(entry.getValue());
+          commands += entry.getValue().count();
+        }
+      }
+
+      if (caseTerminals != null) {
+        if (matchesAnOutcome(outputs)) {
+          matched++;
+        } else if (iteration == matched) {
+          // the first iteration to go wrong is worth a look; the rest are probably the same
+          System.err.println("Iteration " + iteration + " printed none of the expected outcomes:");
+          for (int t = 0; t < terminals; t++) {
+            System.err.println("terminal " + t + ":");
+            for (String line : outputs.get(t)) {
+              System.err.println("  " + line);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static void runTerminal(Query q, Script script, List<String> output, Map<String, LatencyHistogram> histograms)
+  {
+    Session session = new Session();
+    String response = null;
+    String command;
+    while ((command = script.next(response)) != null) {
+      long begin = System.nanoTime();
+      response = FlightService.execute(q, session, command);
+      long nanos = System.nanoTime() - begin;
+
+      int space = command.indexOf(' ');
+      String kind = (space < 0) ? command : command.substring(0, space);
+      LatencyHistogram histogram = histograms.get(kind);
+      if (histogram == null) {
+        histogram = new LatencyHistogram();
+        histograms.put(kind, histogram);
+      }
+      histogram.record(nanos);
+      addLines(output, response);
+    }
+  }
+
+  // every terminal has to have printed the same outcome, as the grader requires
+  private boolean matchesAnOutcome(List<List<String>> outputs)
+  {
+    int outcomes = 0;
+    for (CaseTerminal terminal : caseTerminals) {
+      outcomes = Math.max(outcomes, terminal.outcomes.size());
+    }
+    for (int outcome = 0; outcome < outcomes; outcome++) {
+      boolean all = true;
+      for (int t = 0; t < terminals && all; t++) {
+        List<List<String>> expected = caseTerminals.get(t).outcomes;
+        all = outcome < expected.size() && expected.get(outcome).equals(outputs.get(t));
+      }
+      if (all) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Script script(int iteration, int terminal)
+  {
+    if (caseTerminals != null) {
+      final List<String> commands = caseTerminals.get(terminal).commands;
+      return new Script() {
+        private int next = 0;
+
+        public String next(String lastResponse) {
+          return (next < commands.size()) ? commands.get(next++) : null;
+        }
+      };
+    }
+    return new MixScript("load" + iteration + "_" + terminal, new Random(seed + iteration * 7919L + terminal));
+  }
+
+  /**
+   * A customer that creates an account, logs in and then sends {@code ops} commands drawn from
+   * the mix, all about the same route and day, booking from what it last found and paying for
+   * and canceling what it last booked.
+   */
+  private class MixScript implements Script
+  {
+    private final String username;
+    private final Random random;
+    private int sent = 0;
+    private int itineraries = 0;
+    private String reservationId = "1";
+
+    MixScript(String username, Random random)
+    {
+      this.username = username;
+      this.random = random;
+    }
+
+    public String next(String lastResponse)
+    {
+      if (lastResponse != null) {
+        look(lastResponse);
+      }
+      sent++;
+      if (sent == 1) {
+        return "create " + username + " " + username + " 100000";
+      }
+      if (sent == 2) {
+        return "login " + username + " " + username;
+      }
+      if (sent > ops + 2) {
+        return null;
+      }
+
+      String command = pick();
+      if (command.equals("search")) {
+        return "search \"" + origin + "\" \"" + destination + "\" 0 " + day + " 10";
+      }
+      if (command.equals("book")) {
+        return "book " + ((itineraries == 0) ? 0 : random.nextInt(itineraries));
+      }
+      if (command.equals("pay") || command.equals("cancel")) {
+        return command + " " + reservationId;
+      }
+      return command;
+    }
+
+    private String pick()
+    {
+      int total = 0;
+      for (int weight : mixWeights) {
+        total += weight;
+      }
+      int r = random.nextInt(Math.max(1, total));
+      for (int i = 0; i < MIX_COMMANDS.length; i++) {
+        r -= mixWeights[i];
+        if (r < 0) {
+          return MIX_COMMANDS[i];
+        }
+      }
+      return "reservations";
+    }
+
+    // remembers how many itineraries the last search offered and the last reservation booked
+    private void look(String response)
+    {
+      if (response.startsWith("Itinerary ")) {
+        itineraries = 0;
+        for (String line : response.split("\n")) {
+          if (line.startsWith("Itinerary ")) {
+            itineraries++;
+          }
+        }
+      } else if (response.startsWith("Booked flight(s), reservation ID: ")) {
+        reservationId = response.substring("Booked flight(s), reservation ID: ".length()).trim();
+      }
+    }
+  }
+
+  private void report(PrintStream out)
+  {
+    double seconds = elapsedNanos / 1e9;
+    out.printf("%d terminals x %d iterations: %d commands in %.2f s, %.1f commands/s%n", terminals, iterations,
+               commands, seconds, (seconds > 0) ? commands / seconds : 0.0);
+    out.printf("%-14s %10s %10s %10s %10s %10s%n", "command", "count", "p50 us", "p99 us", "p999 us", "max us");
+    for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      out.printf("%-14s %10d %10.1f %10.1f %10.1f %10.1f%n", entry.getKey(), histogram.count(),
+                 histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+                 histogram.max() / 1e3);
+    }
+    if (caseTerminals != null) {
+      out.println("outputs: " + matched + " of " + iterations + " iterations printed an expected outcome");
+    }
+  }
+}
@@ -0,0 +1,195 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters shared by every session in the JVM, read back by the stats
+ * command and, when flightservice.metrics_file is set, written to that file every
+ * flightservice.metrics_interval_ms.
+ *
+ * Timers and counters are looked up by name once, when the class that records into them is
+ * loaded; recording is then a few atomic increments, with no locking and no allocation, so it
+ * stays on in production.
+ */
+public class Metrics
+{
+  /**
+   * A latency histogram any number of threads can record into at once.
+   */
+  public static class Timer
+  {
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the time since {@code startNanos}, a value of System.nanoTime().
+     */
+    public void recordSince(long startNanos)
+    {
+      record(System.nanoTime() - startNanos);
+    }
+
+    public void record(long nanos)
+    {
+      if (nanos < 0) {
+        nanos = 0;
+      }
+      counts.incrementAndGet(LatencyHistogram.bucket(nanos));
+      count.incrementAndGet();
+      total.addAndGet(nanos);
+      long seen = max.get();
+      while (nanos > seen && !max.compareAndSet(seen, nanos)) {
+        seen = max.get();
+      }
+    }
+
+    /**
+     * @return a copy of what has been recorded so far; recording may go on while it is taken
+     */
+    public LatencyHistogram snapshot()
+    {
+      long[] copy = new long[LatencyHistogram.BUCKETS];
+      for (int i = 0; i < copy.length; i++) {
+        copy[i] = counts.get(i);
+      }
+      return new LatencyHistogram(copy, count.get(), total.get(), max.get());
+    }
+  }
+
+  /**
+   * A number of times something happened.
+   */
+  public static class Counter
+  {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment()
+    {
+      value.incrementAndGet();
+    }
+
+    public void add(long n)
+    {
+      value.addAndGet(n);
+    }
+
+    public long get()
+    {
+      return value.get();
+    }
+  }
+
+  private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+  private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+
+  private static ScheduledExecutorService dumper;
+
+  private Metrics() {}
+
+  /**
+   * @return the timer called {@code name}, created the first time it is asked for
+   */
+  public static Timer timer(String name)
+  {
+    Timer timer = timers.get(name);
+    if (timer == null) {
+      timers.putIfAbsent(name, new Timer());
+      timer = timers.get(name);
+    }
+    return timer;
+  }
+
+  /**
+   * @return the counter called {@code name}, created the first time it is asked for
+   */
+  public static Counter counter(String name)
+  {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new Counter());
+      counter = counters.get(name);
+    }
+    return counter;
+  }
+
+  /**
+   * Lists every timer that has recorded something, with its count and latency percentiles in
+   * microseconds, followed by every counter, each sorted by name.
+   */
+  public static String report()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-32s %10s %10s %10s %10s %10s\n", "timer", "count", "p50 us", "p99 us", "p999 us",
+                            "max us"));
+    for (Map.Entry<String, Timer> entry : new TreeMap<String, Timer>(timers).entrySet()) {
+      LatencyHistogram histogram = entry.getValue().snapshot();
+      if (histogram.count() == 0) {
+        continue;
+      }
+      sb.append(String.format("%-32s %10d %10.1f %10.1f %10.1f %10.1f\n", entry.getKey(), histogram.count(),
+                              histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+                              histogram.percentile(99.9) / 1e3, histogram.max() / 1e3));
+    }
+    sb.append(String.format("%-32s %10s\n", "counter", "count"));
+    for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+      sb.append(String.format("%-32s %10d\n", entry.getKey(), entry.getValue().get()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Starts writing {@link #report} to {@code path} every {@code intervalMillis}, unless a dump
+   * is already running in this JVM. Each dump replaces the last one as a whole, so a reader
+   * never sees half of one.
+   */
+  public static synchronized void startDump(final String path, long intervalMillis)
+  {
+    if (dumper != null) {
+      return;
+    }
+    dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "metrics-dump");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    dumper.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          dump(new File(path));
+        } catch (IOException e) {
+          //e.printStackTrace();
+        }
+      }
+    }, intervalMillis, Math.max(1, intervalMillis), TimeUnit.MILLISECONDS);
+  }
+
+  private static void dump(File file) throws IOException
+  {
+    File dir = file.getAbsoluteFile().getParentFile();
+    File temp = File.createTempFile(file.getName(), ".tmp", dir);
+    PrintWriter out = new PrintWriter(temp, "UTF-8");
+    try {
+      out.println("# " + new Date());
+      out.print(report());
+    } finally {
+      out.close();
+    }
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+}
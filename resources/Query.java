@@ -1,11 +1,9 @@
 import java.io.FileInputStream;
-import java.sql.*;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Runs queries against a back-end database
@@ -15,125 +13,46 @@ public class Query
   private String configFilename;
   private Properties configProps = new Properties();
 
-  private String jSQLDriver;
-  private String jSQLUrl;
-  private String jSQLUser;
-  private String jSQLPassword;
-
-  // DB Connection
-  private Connection conn;
-
-  // Logged In User
-  private String username; // customer username is unique
-  private boolean isLoggedIn = false;
-  private int possibleBookingCount = 0;
-  private Flight[] bookingOptions;
-  private int masterResId = 1;
-  private int resetCount = 0;
-  private Flight[] capacityReset = new Flight[500];
-  private Set<Integer> f = new HashSet<Integer>();
-
-  // Canned queries
-
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Capacities WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
-
-  private static final String MAKE_NEW_USER = "INSERT INTO Users VALUES (?, ?, ?)";
-  private PreparedStatement newUserStatement;
-
-  private static final String LOGIN_CHECK = "SELECT COUNT(*) as status FROM Users WHERE username = ? AND password = ?";
-  private PreparedStatement loginStatement;
-
-  private static final String SEARCH_ONE_HOP =    "SELECT TOP (?) F.fid AS fid, F.day_of_month AS day_of_month, F.carrier_id AS carrier_id, "
-                                                + "F.flight_num AS flight_num, F.origin_city AS origin_city, F.dest_city AS dest_city, F.actual_time AS actual_time, "
-						+ "F.capacity AS capacity, F.price AS price "
-						+ "FROM Flights AS F "
-						+ "WHERE F.origin_city = ? AND F.dest_city = ? AND F.day_of_month = ? AND F.actual_time IS NOT NULL AND F.canceled = 0 "
-						+ "ORDER BY F.actual_time ASC, F.fid ASC";
-  private PreparedStatement searchOneHopStatement;
-
-  private static final String SEARCH_TWO_HOP =    "SELECT TOP (?) F.fid AS fid, F.day_of_month AS day_of_month, F.carrier_id AS carrier_id, "
-						+ "F.flight_num AS flight_num, F.origin_city AS origin_city, F.dest_city AS dest_city, F.actual_time AS actual_time, "
-  						+ "F.capacity AS capacity, F.price AS price, "
-						+ "F2.fid AS fid2, F2.day_of_month AS day_of_month2, F2.carrier_id AS carrier_id2, "
-						+ "F2.flight_num AS flight_num2, F2.origin_city AS origin_city2, F2.dest_city AS dest_city2, "
-						+ "F2.actual_time AS actual_time2, F.actual_time + F2.actual_time AS total_time, "
-						+ "F2.capacity AS capacity2, F2.price AS price2 "
-						+ "FROM Flights F, Flights F2 "
-						+ "WHERE F.origin_city = ? AND F2.dest_city = ? AND F.day_of_month = ? AND F.actual_time IS NOT NULL AND F.canceled = 0 "
-						+ "AND F.day_of_month = F2.day_of_month AND F.dest_city = F2.origin_city AND F2.actual_time IS NOT NULL "
-						+ "AND F2.canceled = 0 "
-						+ "ORDER BY total_time ASC, F.fid ASC";
-  private PreparedStatement searchTwoHopStatement;
-
-  private static final String CHECK_RESERVATIONS = "SET NOCOUNT ON; SELECT COUNT(*) AS numRes FROM Reservations WHERE username = ? AND reservationDate = ? ";
-  private PreparedStatement checkReservationsStatement;
-
-  private static final String REDUCE_CAPACITY = "UPDATE Capacities SET capacity = capacity - 1 WHERE fid = ? ";
-  private PreparedStatement reduceCapacityStatement; 
-
-  private static final String CREATE_RESERVATION = "INSERT INTO Reservations VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-  private PreparedStatement createReservationStatement;
-
-  private static final String CURRENT_RESERVATIONS = "SET NOCOUNT ON; "
-						   + "SELECT F.fid AS fid, F.day_of_month AS day_of_month, F.carrier_id AS carrier_id, "
-						   + "F.flight_num AS flight_num, F.origin_city AS origin_city, F.dest_city AS dest_city, F.actual_time AS actual_time, "
-  						   + "F.capacity AS capacity, F.price AS price, "
-						   + "F2.fid AS fid2, F2.day_of_month AS day_of_month2, F2.carrier_id AS carrier_id2, "
-						   + "F2.flight_num AS flight_num2, F2.origin_city AS origin_city2, F2.dest_city AS dest_city2, "
-						   + "F2.actual_time AS actual_time2, F.actual_time + F2.actual_time AS total_time, "
-						   + "F2.capacity AS capacity2, F.price AS price2, R.reservation_id as resID, R.paid as paid, R.canceled as canceled "
-						   + "FROM Reservations R INNER JOIN Flights F ON R.flight_id = F.fid LEFT OUTER JOIN Flights F2 ON R.flight_id2 = F2.fid "
-                                                   + "WHERE R.username = ? AND R.canceled = 0" ;
-
-  private PreparedStatement retrieveReservationsStatement;
- 
-  private static final String USER_RESERVATIONS =  "SET NOCOUNT ON; SELECT * FROM Reservations WHERE reservation_id = ? AND username = ? ";
-  private PreparedStatement listReservationStatement; 
-
-  private static final String USER_BALANCE = "SELECT * FROM Users WHERE username = ? ";
-  private PreparedStatement retrieveBalanceStatement;
-
-  private static final String MAKE_PAYMENT = "UPDATE Users SET initAmount = ? WHERE username = ?; "
-					   + "UPDATE Reservations SET paid = ? WHERE reservation_id = ? ";
-  private PreparedStatement makePaymentStatement;
-
-  private static final String GET_REFUND = "UPDATE Reservations SET paid = 0 WHERE reservation_id = ?; "
-  					 + "UPDATE Reservations SET canceled = 1 WHERE reservation_id = ?; "
-					 + "UPDATE Users SET initAmount = initAmount + ? WHERE username = ? ";
-  private PreparedStatement refundStatement;
-
-  private static final String CLEAR_USERS = "DELETE FROM Users ";
-  private PreparedStatement clearUsersStatement;
-  
-  private static final String CLEAR_ITINERARIES = "DELETE FROM Itineraries";
-  private PreparedStatement clearItinierariesStatement;
-
-  private static final String CLEAR_RESERVATIONS = "DELETE FROM Reservations";
-  private PreparedStatement clearReservationsStatement;
-
-  private static final String CANCEL_ADJUST = "UPDATE Reservations SET canceled = 1 WHERE reservation_id = ?; "
-                                            + "UPDATE Capacities SET capacity = ? WHERE fid = ? ";
-  private PreparedStatement cancelAdjustStatement;
-  
-  private static final String RESET_CAPACITY = "UPDATE Capacities SET capacity = Flights.capacity FROM Flights WHERE fid = ? ";
-  private PreparedStatement adjustCapacityStatement; 
-
-  //private static final String COUNT_RESERVATIONS = "SELECT COUNT(*) AS count FROM Reservations ";
-  //private PreparedStatement checkBookingCountStatement;
-
-  // transactions
-  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-  private PreparedStatement beginTransactionStatement;
-
-  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
-  private PreparedStatement commitTransactionStatement;
-
-  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
-  private PreparedStatement rollbackTransactionStatement;
-
-  
-  class Flight
+  // Where the flights, users and reservations live
+  private FlightStore store;
+
+  // Session used by the transaction_* methods that don't take one
+  private final Session defaultSession = new Session();
+
+  // Search responses shared by every Query in this JVM (null when disabled)
+  private static SearchCache<CachedSearch> searchCache;
+
+  // Whether sessions keep their user's reservations between reservations commands
+  private boolean reservationCache = true;
+
+  // Changes made through any Query in this JVM to the reservations of the users whose names hash
+  // to each slot, so a session can tell that its copy is out of date without asking the store
+  private static final AtomicLongArray reservationChanges = new AtomicLongArray(1024);
+
+  // How the transaction_* calls turned out, for the stats command
+  private static final Metrics.Counter LOGGED_IN = Metrics.counter("login.ok");
+  private static final Metrics.Counter LOGIN_FAILED = Metrics.counter("login.failed");
+  private static final Metrics.Counter CREATED = Metrics.counter("create.ok");
+  private static final Metrics.Counter CREATE_FAILED = Metrics.counter("create.failed");
+  private static final Metrics.Counter SEARCH_CACHED = Metrics.counter("search.cached");
+  private static final Metrics.Counter SEARCH_FOUND = Metrics.counter("search.found");
+  private static final Metrics.Counter SEARCH_EMPTY = Metrics.counter("search.none");
+  private static final Metrics.Counter SEARCH_FAILED = Metrics.counter("search.failed");
+  private static final Metrics.Counter BOOKED = Metrics.counter("book.booked");
+  private static final Metrics.Counter BOOK_SAME_DAY = Metrics.counter("book.same_day");
+  private static final Metrics.Counter BOOK_FAILED = Metrics.counter("book.failed");
+  private static final Metrics.Counter RESERVATIONS_CACHED = Metrics.counter("reservations.cached");
+  private static final Metrics.Counter RESERVATIONS_FOUND = Metrics.counter("reservations.found");
+  private static final Metrics.Counter RESERVATIONS_EMPTY = Metrics.counter("reservations.none");
+  private static final Metrics.Counter RESERVATIONS_FAILED = Metrics.counter("reservations.failed");
+  private static final Metrics.Counter CANCELED = Metrics.counter("cancel.canceled");
+  private static final Metrics.Counter CANCEL_FAILED = Metrics.counter("cancel.failed");
+  private static final Metrics.Counter PAID = Metrics.counter("pay.paid");
+  private static final Metrics.Counter PAY_NOT_FOUND = Metrics.counter("pay.not_found");
+  private static final Metrics.Counter PAY_INSUFFICIENT = Metrics.counter("pay.insufficient_balance");
+  private static final Metrics.Counter PAY_FAILED = Metrics.counter("pay.failed");
+
+  static class Flight
   {
     public int itineraryNum;
    
@@ -199,81 +118,175 @@ public class Query
       this.price2 = price2;
     }
    
-    //constructor for single hop Flight which needs to have its capacities reset when clearTables() is called
-    public Flight(int fid, int capacity) {
-      this.fid = fid;
-      this.capacity = capacity;
-    }
-
-    //constructor for double hop Flights which need to have their capacities reset when clearTables() is called
-    public Flight(int fid, int fid2, int capacity, int capacity2) {
-      this.fid = fid;
-      this.fid2 = fid2;
-      this.capacity = capacity;
-      this.capacity2 = capacity2;	
-    }
-
     @Override
     public String toString()
     {
-      return  "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId +
-              " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
-              " Capacity: " + capacity + " Price: " + price + "\n";
+      StringBuilder sb = new StringBuilder(128);
+      appendTo(sb);
+      return sb.toString();
     }
 
     public String oneHopString() {
-      return  "1 flight(s), " + time + " minutes" + "\n" + 
-              "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId +
-              " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
-              " Capacity: " + capacity + " Price: " + price + "\n";  
+      StringBuilder sb = new StringBuilder(160);
+      appendOneHop(sb);
+      return sb.toString();
     }
 
     public String twoHopString() {
-      return  "2 flight(s), " + (time + time2) + " minutes" + "\n" +
-              "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId +
-              " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
-              " Capacity: " + capacity + " Price: " + price + "\n" +
-              "ID: " + fid2 + " Day: " + dayOfMonth2 + " Carrier: " + carrierId2 +
-              " Number: " + flightNum2 + " Origin: " + originCity2 + " Dest: " + destCity2 + " Duration: " + time2 +
-              " Capacity: " + capacity2 + " Price: " + price2 + "\n";  
+      StringBuilder sb = new StringBuilder(288);
+      appendTwoHop(sb);
+      return sb.toString();
+    }
+
+    /**
+     * Appends what {@link #toString} returns, without making any garbage along the way.
+     */
+    public void appendTo(StringBuilder sb) {
+      appendLeg(sb, fid, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity, price);
+    }
+
+    /**
+     * Appends what {@link #oneHopString} returns.
+     */
+    public void appendOneHop(StringBuilder sb) {
+      sb.append("1 flight(s), ").append(time).append(" minutes").append('\n');
+      appendTo(sb);
+    }
+
+    /**
+     * Appends what {@link #twoHopString} returns.
+     */
+    public void appendTwoHop(StringBuilder sb) {
+      sb.append("2 flight(s), ").append(time + time2).append(" minutes").append('\n');
+      appendTo(sb);
+      appendLeg(sb, fid2, dayOfMonth2, carrierId2, flightNum2, originCity2, destCity2, time2, capacity2, price2);
+    }
+
+    private static void appendLeg(StringBuilder sb, int fid, int dayOfMonth, String carrierId, int flightNum,
+                                  String originCity, String destCity, int time, int capacity, int price) {
+      sb.append("ID: ").append(fid).append(" Day: ").append(dayOfMonth).append(" Carrier: ").append(carrierId)
+        .append(" Number: ").append(flightNum).append(" Origin: ").append(originCity).append(" Dest: ").append(destCity)
+        .append(" Duration: ").append(time).append(" Capacity: ").append(capacity).append(" Price: ").append(price)
+        .append('\n');
     }
 
   }
 
+  // a search response along with the itineraries it offered for booking
+  private static class CachedSearch
+  {
+    final String results;
+    final Flight[] options;
+
+    CachedSearch(String results, Flight[] options) {
+      this.results = results;
+      this.options = options;
+    }
+  }
+
   public Query(String configFilename)
   {
     this.configFilename = configFilename;
   }
 
-  /* Connection code to SQL Azure.  */
+  /**
+   * Opens the store named by flightservice.store: "jdbc" (the default) for SQL Server, or
+   * "embedded" to keep everything in this JVM.
+   */
   public void openConnection() throws Exception
   {
     configProps.load(new FileInputStream(configFilename));
 
-    jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
-    jSQLUrl = configProps.getProperty("flightservice.url");
-    jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
-    jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
+    String storeName = configProps.getProperty("flightservice.store", "jdbc").trim();
+    if (storeName.equals("jdbc")) {
+      store = new JdbcFlightStore(configProps);
+    } else if (storeName.equals("embedded")) {
+      store = EmbeddedFlightStore.open(configProps);
+    } else {
+      throw new IllegalArgumentException("Unknown flightservice.store: " + storeName);
+    }
+
+    int searchCacheSize = Integer.parseInt(configProps.getProperty("flightservice.search_cache_size", "0").trim());
+    if (searchCacheSize > 0) {
+      long ttlMillis = Long.parseLong(configProps.getProperty("flightservice.search_cache_ttl_ms", "60000").trim());
+      createSearchCache(searchCacheSize, ttlMillis);
+    }
+
+    reservationCache = Boolean.parseBoolean(configProps.getProperty("flightservice.reservation_cache", "true").trim());
 
-    /* load jdbc drivers */
-    Class.forName(jSQLDriver).newInstance();
+    String metricsFile = configProps.getProperty("flightservice.metrics_file", "").trim();
+    if (!metricsFile.isEmpty()) {
+      Metrics.startDump(metricsFile,
+                        Long.parseLong(configProps.getProperty("flightservice.metrics_interval_ms", "60000").trim()));
+    }
+  }
 
-    /* open connections to the flights database */
-    conn = DriverManager.getConnection(jSQLUrl, // database
-            jSQLUser, // user
-            jSQLPassword); // password
+  private static synchronized void createSearchCache(int maxEntries, long ttlMillis)
+  {
+    if (searchCache == null) {
+      searchCache = new SearchCache<CachedSearch>(maxEntries, ttlMillis);
+    }
+  }
 
-    conn.setAutoCommit(true); //by default automatically commit after each statement
+  /**
+   * @return a setting from the configuration file, once openConnection has read it
+   */
+  public String property(String name, String defaultValue)
+  {
+    return configProps.getProperty(name, defaultValue);
+  }
 
-    /* You will also want to appropriately set the transaction's isolation level through:
-       conn.setTransactionIsolation(...)
-       See Connection class' JavaDoc for details.
-    */
+  /**
+   * @return the store this Query reads and writes
+   */
+  public FlightStore store()
+  {
+    return store;
   }
 
   public void closeConnection() throws Exception
   {
-    conn.close();
+    store.close();
+  }
+
+  /**
+   * @return the session used by the transaction_* methods that don't take one
+   */
+  public Session defaultSession()
+  {
+    return defaultSession;
+  }
+
+  /* the transaction_* methods below act on the default session */
+
+  public String transaction_login(String username, String password)
+  {
+    return transaction_login(defaultSession, username, password);
+  }
+
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries)
+  {
+    return transaction_search(defaultSession, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+  }
+
+  public String transaction_book(int itineraryId)
+  {
+    return transaction_book(defaultSession, itineraryId);
+  }
+
+  public String transaction_reservations()
+  {
+    return transaction_reservations(defaultSession);
+  }
+
+  public String transaction_cancel(int reservationId)
+  {
+    return transaction_cancel(defaultSession, reservationId);
+  }
+
+  public String transaction_pay (int reservationId)
+  {
+    return transaction_pay(defaultSession, reservationId);
   }
 
   /**
@@ -283,78 +296,29 @@ public class Query
    */
   public void clearTables ()
   {
-    try {    
-       
-      fixCapacity();
-
-      clearReservationsStatement.clearParameters();
-      clearReservationsStatement.executeUpdate();
-
-      clearUsersStatement.clearParameters();
-      clearUsersStatement.executeUpdate();
-
-      clearItinierariesStatement.clearParameters();
-      clearItinierariesStatement.executeUpdate();
-           
-      masterResId = 1;
-      resetCount = 0;
-      f = null;
-      
+    try {
+      store.clear();
     } catch(Exception E) {
       //E.printStackTrace();
     }
-  }
-   
-  // helper method to reset flights to their original capacities
-  private void fixCapacity() throws SQLException {
-    for(Integer I : f) {
-      int tempID = I.intValue();
-      adjustCapacityStatement.setInt(1, tempID);
-      adjustCapacityStatement.executeUpdate();
+    for(int i = 0; i < reservationChanges.length(); i++) {
+      reservationChanges.incrementAndGet(i);
     }
   }
 
-
   /**
-   * prepare all the SQL statements in this method.
-   * "preparing" a statement is almost like compiling it.
-   * Note that the parameters (with ?) are still not filled in
+   * Gets the store ready for the transaction_* methods; for the JDBC store this prepares the
+   * SQL statements on every pooled connection.
    */
   public void prepareStatements() throws Exception
   {
-    beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-    commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-    rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-    
-
-    /* . . . . . . */
-
-    newUserStatement = conn.prepareStatement(MAKE_NEW_USER);
-    loginStatement = conn.prepareStatement(LOGIN_CHECK);
-    searchOneHopStatement = conn.prepareStatement(SEARCH_ONE_HOP);
-    searchTwoHopStatement = conn.prepareStatement(SEARCH_TWO_HOP);
-    checkReservationsStatement = conn.prepareStatement(CHECK_RESERVATIONS);
-    reduceCapacityStatement = conn.prepareStatement(REDUCE_CAPACITY);
-    createReservationStatement = conn.prepareStatement(CREATE_RESERVATION);
-    retrieveReservationsStatement = conn.prepareStatement(CURRENT_RESERVATIONS);
-    listReservationStatement = conn.prepareStatement(USER_RESERVATIONS);
-    retrieveBalanceStatement = conn.prepareStatement(USER_BALANCE);
-    makePaymentStatement = conn.prepareStatement(MAKE_PAYMENT);
-    refundStatement = conn.prepareStatement(GET_REFUND);
-    clearUsersStatement = conn.prepareStatement(CLEAR_USERS);
-    clearItinierariesStatement = conn.prepareStatement(CLEAR_ITINERARIES);
-    clearReservationsStatement = conn.prepareStatement(CLEAR_RESERVATIONS);
-    cancelAdjustStatement = conn.prepareStatement(CANCEL_ADJUST);
-    adjustCapacityStatement = conn.prepareStatement(RESET_CAPACITY);
-
-    //checkBookingCountStatement = conn.prepareStatement(COUNT_RESERVATIONS);
+    store.prepareStatements();
   }
 
   /**
    * Takes a user's username and password and attempts to log the user in.
    *
+   * @param session
    * @param username
    * @param password
    *
@@ -363,34 +327,28 @@ public class Query
    *
    * Otherwise, return "Logged in as [username]\n".
    */
-  public String transaction_login(String username, String password)
+  public String transaction_login(Session session, String username, String password)
   {
-	int status = 0;
-
-	if(this.isLoggedIn) {
-           return "User already logged in\n";
-	}
-
-  	try {
-	   loginStatement.clearParameters();
-	   loginStatement.setString(1, username);
-	   loginStatement.setString(2, password);    
-	   ResultSet loginSet = loginStatement.executeQuery();
-	   loginSet.next();
-	   status = loginSet.getInt("status");
-	   loginSet.close();
-	   if(status > 0 && status <= 1) {
-	      this.possibleBookingCount = 0;
-              this.bookingOptions = null;
-	      this.isLoggedIn = true;
-	      this.username = username;
-	      return "Logged in as " + username + "\n";
-	   }
-	}
-	catch (Exception E) {
-	   return "Login failed\n";
-	}	
-  return "Login failed\n";
+    if(session.isLoggedIn) {
+      return "User already logged in\n";
+    }
+
+    try {
+      if(store.login(username, password)) {
+        session.possibleBookingCount = 0;
+        session.bookingOptions = null;
+        session.reservations = null;
+        session.isLoggedIn = true;
+        session.username = username;
+        LOGGED_IN.increment();
+        return "Logged in as " + username + "\n";
+      }
+    } catch (Exception E) {
+      LOGIN_FAILED.increment();
+      return "Login failed\n";
+    }
+    LOGIN_FAILED.increment();
+    return "Login failed\n";
   }
 
   /**
@@ -404,26 +362,21 @@ public class Query
    */
   public String transaction_createCustomer (String username, String password, int initAmount)
   {
-     try {
-	if(initAmount < 0) {
-          return "Failed to create user\n";
-        }
-        newUserStatement.clearParameters();
-	newUserStatement.setString(1, username);
-	newUserStatement.setString(2, password);
-	newUserStatement.setInt(3, initAmount);
-	newUserStatement.executeUpdate();
-
-	return "Created user " + username + "\n";	
-     }
-     
-     catch(Exception E) {
-       //System.out.println(E.toString());
-       return "Failed to create user\n";
-     }
+    if(initAmount < 0) {
+      CREATE_FAILED.increment();
+      return "Failed to create user\n";
+    }
+    try {
+      if(store.createCustomer(username, password, initAmount)) {
+        CREATED.increment();
+        return "Created user " + username + "\n";
+      }
+    } catch(Exception E) {
+      //System.out.println(E.toString());
+    }
+    CREATE_FAILED.increment();
+    return "Failed to create user\n";
   }
-  
-  
 
   /**
    * Implement the search function.
@@ -436,6 +389,7 @@ public class Query
    *
    * The results are sorted based on total flight time.
    *
+   * @param session
    * @param originCity
    * @param destinationCity
    * @param directFlight if true, then only search for direct flights, otherwise include indirect flights as well
@@ -457,186 +411,69 @@ public class Query
    *
    * @see Flight#toString()
    */
-  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries)
+  public String transaction_search(Session session, String originCity, String destinationCity, boolean directFlight,
+                                   int dayOfMonth, int numberOfItineraries)
   {
-    //StringBuffer sb = new StringBuffer();
-    int flightCount = 0;
-    bookingOptions = new Flight[numberOfItineraries];
+    String cacheKey = null;
+    if(searchCache != null) {
+      cacheKey = SearchCache.key(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+      CachedSearch cached = searchCache.get(cacheKey);
+      if(cached != null) {
+        // the cached array is never written to, so sessions can share it
+        session.bookingOptions = cached.options;
+        session.possibleBookingCount = cached.options.length;
+        SEARCH_CACHED.increment();
+        return cached.results;
+      }
+    }
+
+    session.bookingOptions = new Flight[numberOfItineraries];
     try {
-      searchOneHopStatement.clearParameters();
-      searchOneHopStatement.setInt(1, numberOfItineraries);
-      searchOneHopStatement.setString(2, originCity);
-      searchOneHopStatement.setString(3, destinationCity);
-      searchOneHopStatement.setInt(4, dayOfMonth);
-      ResultSet oneHopSearchResults = searchOneHopStatement.executeQuery();
-          
-      while(oneHopSearchResults.next()) {
-        int result_fid = oneHopSearchResults.getInt("fid");
-        int result_dayOfMonth = oneHopSearchResults.getInt("day_of_month");
-        String result_carrierId = oneHopSearchResults.getString("carrier_id");
-        int result_flightNum = oneHopSearchResults.getInt("flight_num");
-        String result_origin = oneHopSearchResults.getString("origin_city");
-        String result_dest = oneHopSearchResults.getString("dest_city");
-        int result_time = oneHopSearchResults.getInt("actual_time");
-        int result_capacity = oneHopSearchResults.getInt("capacity");
-        int result_price = oneHopSearchResults.getInt("price");
-        Flight tempFlight = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, 
-                                       result_origin, result_dest, result_time, result_capacity, result_price);       
-        bookingOptions[flightCount] = tempFlight;
-	flightCount++;        
+      int flightCount = store.search(session.bookingOptions, originCity, destinationCity, directFlight, dayOfMonth);
+
+      if(flightCount == 0) {
+        SEARCH_EMPTY.increment();
+        return "No flights match your selection\n";
       }
-      oneHopSearchResults.close();
-
-      if(!directFlight) {        
-        searchTwoHopStatement.clearParameters();
-        searchTwoHopStatement.setInt(1, numberOfItineraries - flightCount);
-        searchTwoHopStatement.setString(2, originCity);
-        searchTwoHopStatement.setString(3, destinationCity);
-        searchTwoHopStatement.setInt(4, dayOfMonth);
-        ResultSet twoHopSearchResults = searchTwoHopStatement.executeQuery();
-        
-        while(twoHopSearchResults.next()) {
-          
-          int result_fid = twoHopSearchResults.getInt("fid");
-          int result_dayOfMonth = twoHopSearchResults.getInt("day_of_month");
-          String result_carrierId = twoHopSearchResults.getString("carrier_id");
-          int result_flightNum = twoHopSearchResults.getInt("flight_num");
-          String result_origin = twoHopSearchResults.getString("origin_city");
-          String result_dest = twoHopSearchResults.getString("dest_city");
-          int result_time = twoHopSearchResults.getInt("actual_time");
-          int result_capacity = twoHopSearchResults.getInt("capacity");
-          int result_price = twoHopSearchResults.getInt("price");
-
-          int result_fid2 = twoHopSearchResults.getInt("fid2");
-          int result_dayOfMonth2 = twoHopSearchResults.getInt("day_of_month2");
-          String result_carrierId2 = twoHopSearchResults.getString("carrier_id2");
-          int result_flightNum2 = twoHopSearchResults.getInt("flight_num2");
-          String result_origin2 = twoHopSearchResults.getString("origin_city2");
-          String result_dest2 = twoHopSearchResults.getString("dest_city2");
-          int result_time2 = twoHopSearchResults.getInt("actual_time2");
-          int result_capacity2 = twoHopSearchResults.getInt("capacity2");
-          int result_price2 = twoHopSearchResults.getInt("price2");
-
-          int totalTime = result_time + result_time2;
-          
-          Flight tempTwoHopFlightA = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, 
-                                                result_origin, result_dest, result_time, result_capacity, result_price);
-
-          Flight tempTwoHopFlightB = new Flight(result_fid2, result_dayOfMonth2, result_carrierId2, result_flightNum2, 
-                                                result_origin2, result_dest2, result_time2, result_capacity2, result_price2);
-
-	  Flight tempTwoHopFlightStore = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, 
-                                                    result_origin, result_dest, result_time, result_capacity, result_price, 
-						    result_fid2, result_dayOfMonth2, result_carrierId2, result_flightNum2, 
-                                                    result_origin2, result_dest2, result_time2, result_capacity2, result_price2);
-         
-	  bookingOptions[flightCount] = tempTwoHopFlightStore;
-          flightCount++;   
-        } 
-        twoHopSearchResults.close();
+      session.possibleBookingCount = flightCount;
+
+      StringBuilder sb = session.responseBuffer();
+      for(int i = 0; i < flightCount; i++) {
+        sb.append("Itinerary ").append(i).append(": ");
+        if(session.bookingOptions[i].fid2 != 0) {
+          session.bookingOptions[i].appendTwoHop(sb);
+        } else {
+          session.bookingOptions[i].appendOneHop(sb);
+        }
       }
-      
-    if(flightCount == 0) {
-      return "No flights match your selection\n";
-    }
-    possibleBookingCount = flightCount;
-    
-    
-    
-    Flight temp = new Flight(0, 0, "", 0, "", "", 0, 0, 0, 0, 0, "", 0, "", "", 0, 0, 0);
-    for (int i = 0; i <= bookingOptions.length; i++) 
-    {
-        for (int j = i+1; j < bookingOptions.length; j++)
-        {
-            if ((bookingOptions[i].time + bookingOptions[i].time2) > (bookingOptions[j].time + bookingOptions[j].time2)) 
-            {
-                temp = bookingOptions[i];
-                bookingOptions[i] = bookingOptions[j];
-                bookingOptions[j] = temp;
-               
-            } else if ((bookingOptions[i].time + bookingOptions[i].time2) == (bookingOptions[j].time + bookingOptions[j].time2)) {
-              if(bookingOptions[i].fid > bookingOptions[j].fid) {
-                temp = bookingOptions[i];
-                bookingOptions[i] = bookingOptions[j];
-                bookingOptions[j] = temp;
-               
-              }
-            }
+      String results = sb.toString();
+
+      if(searchCache != null) {
+        int[] fids = new int[flightCount * 2];
+        int fidCount = 0;
+        for(int i = 0; i < flightCount; i++) {
+          fids[fidCount++] = session.bookingOptions[i].fid;
+          if(session.bookingOptions[i].fid2 != 0) {
+            fids[fidCount++] = session.bookingOptions[i].fid2;
+          }
         }
-    }
-   
-    String results = "";
-    for(int i = 0; i < flightCount; i++) {
-      results = results + "Itinerary " + i + ": ";
-      if(bookingOptions[i].fid2 != 0) {
-        results = results + bookingOptions[i].twoHopString();  
-      } else {
-        results = results + bookingOptions[i].oneHopString();  
+        fids = Arrays.copyOf(fids, fidCount);
+        searchCache.put(cacheKey, new CachedSearch(results, Arrays.copyOf(session.bookingOptions, flightCount)), fids);
       }
-    }
-    return results;
-  
-    } catch(Exception E) {      
-      //E.printStackTrace();
-      return "Failed to search\n";
-    } 
-  }
+      SEARCH_FOUND.increment();
+      return results;
 
-  /**
-   * Same as {@code transaction_search} except that it only performs single hop search and
-   * do it in an unsafe manner.
-   *
-   * @param originCity
-   * @param destinationCity
-   * @param directFlight
-   * @param dayOfMonth
-   * @param numberOfItineraries
-   *
-   * @return The search results. Note that this implementation *does not conform* to the format required by
-   * {@code transaction_search}.
-   */
-  private String transaction_search_unsafe(String originCity, String destinationCity, boolean directFlight,
-                                          int dayOfMonth, int numberOfItineraries)
-  {
-    StringBuffer sb = new StringBuffer();
-
-    try
-    {
-      // one hop itineraries
-      String unsafeSearchSQL =
-              "SELECT TOP (" + numberOfItineraries + ") day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
-                      + "FROM Flights "
-                      + "WHERE origin_city = \'" + originCity + "\' AND dest_city = \'" + destinationCity + "\' AND day_of_month =  " + dayOfMonth + " "
-                      + "ORDER BY actual_time ASC";
-
-      Statement searchStatement = conn.createStatement();
-      ResultSet oneHopResults = searchStatement.executeQuery(unsafeSearchSQL);
-
-      while (oneHopResults.next())
-      {
-        int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-        String result_carrierId = oneHopResults.getString("carrier_id");
-        String result_flightNum = oneHopResults.getString("flight_num");
-        String result_originCity = oneHopResults.getString("origin_city");
-        String result_destCity = oneHopResults.getString("dest_city");
-        int result_time = oneHopResults.getInt("actual_time");
-        int result_capacity = oneHopResults.getInt("capacity");
-        int result_price = oneHopResults.getInt("price");
-
-        sb.append("Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: " + result_flightNum + " Origin: " + result_originCity 
-		+ " Destination: " + result_destCity + " Duration: " + result_time + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
-      }
-      oneHopResults.close();
-    } catch (SQLException E) { 
+    } catch(Exception E) {
       //E.printStackTrace();
+      SEARCH_FAILED.increment();
+      return "Failed to search\n";
     }
-
-    return sb.toString();
   }
 
   /**
    * Implements the book itinerary function.
    *
+   * @param session
    * @param itineraryId ID of the itinerary to book. This must be one that is returned by search in the current session.
    *
    * @return If the user is not logged in, then return "Cannot book reservations, not logged in\n".
@@ -649,144 +486,54 @@ public class Query
    * reservationId is a unique number in the reservation system that starts from 1 and increments by 1 each time a
    * successful reservation is made by any user in the system.
    */
-  public String transaction_book(int itineraryId)
+  public String transaction_book(Session session, int itineraryId)
   {
-    if(username == null) {
+    if(session.username == null) {
       return "Cannot book reservations, not logged in\n";
     }
-    
-    if(itineraryId < 0 || itineraryId  >= possibleBookingCount) {
+
+    if(itineraryId < 0 || itineraryId  >= session.possibleBookingCount) {
       return "No such itinerary " + itineraryId + "\n";
     }
-    String failure = "";
+
+    Flight targetBook = session.bookingOptions[itineraryId];
+    List<FlightStore.Reservation> reservations = cachedReservations(session);
     try {
- 
-      beginTransaction();
-      Flight targetBook = bookingOptions[itineraryId];
-      checkReservationsStatement.clearParameters();
-      checkReservationsStatement.setString(1, username);
-      checkReservationsStatement.setInt(2, targetBook.dayOfMonth);
-      ResultSet bookings = checkReservationsStatement.executeQuery();
-      bookings.next();
-      int numOfRes = bookings.getInt("numRes");
-      bookings.close();
-
-      if(numOfRes >= 1) {
-        //need to stop transaction here, since this is an invalid action
-        rollbackTransaction();
+      int resId = store.book(session.username, targetBook);
+      if(resId == FlightStore.SAME_DAY) {
+        BOOK_SAME_DAY.increment();
         return "You cannot book two flights in the same day\n";
       }
-
-      if(checkFlightCapacity(targetBook.fid) >= 1) {        
-        if(targetBook.fid2 != 0) {
-          if(checkFlightCapacity(targetBook.fid2) >= 1) {
-          // double hop flight case
-
-          Integer tempA = new Integer(targetBook.fid);
-          Integer tempB = new Integer(targetBook.fid2);
-
-          if(!f.contains(tempA) && !f.contains(tempB)) {
-            int originalDoubleCapacityA = checkFlightCapacity(targetBook.fid);
-            int originalDoubleCapacityB = checkFlightCapacity(targetBook.fid2);
-            Flight tempHopA = new Flight(targetBook.fid, originalDoubleCapacityA);
-            Flight tempHopB = new Flight(targetBook.fid2, originalDoubleCapacityB);
-
-            Integer intObjA = new Integer(targetBook.fid);
-            Integer intObjB = new Integer(targetBook.fid2);       
-    
-            f.add(intObjA);
-            f.add(intObjB);
-
-            capacityReset[resetCount] = tempHopA;
-            resetCount++;
-            capacityReset[resetCount] = tempHopB;
-            resetCount++;
-          }
-
-	  reduceCapacityStatement.clearParameters();
-	  reduceCapacityStatement.setInt(1, targetBook.fid);
-          reduceCapacityStatement.executeUpdate();
-
-          reduceCapacityStatement.clearParameters();
-	  reduceCapacityStatement.setInt(1, targetBook.fid2);
-          reduceCapacityStatement.executeUpdate();
-    
-          int combinedPrice = targetBook.price + targetBook.price2;
-          createReservationStatement.clearParameters();
-	  createReservationStatement.setInt(1, targetBook.dayOfMonth);
-          createReservationStatement.setString(2, username);
-          createReservationStatement.setInt(3, targetBook.fid);
-	  createReservationStatement.setInt(4, targetBook.fid2);
- 	  createReservationStatement.setInt(5, combinedPrice);
-	  createReservationStatement.setInt(6, 0);
-          createReservationStatement.setInt(7, 0);
-	  createReservationStatement.setInt(8, masterResId);
-          createReservationStatement.executeUpdate();
-          //System.out.println("value of id is: " + masterResId);
-	  masterResId++;
-	//  System.out.println("RIGHT BEEFORE COMMIT");
-	  commitTransaction();
-	  return "Booked flight(s), reservation ID: " + (masterResId - 1) + "\n";
-
-          } else {
-            System.out.println("RIGHT BEEFORE ROLLBACK1");
-            rollbackTransaction();
-            return "Booking failed\n";
-            //return "second flight has no capacity";
-
-          }  
-
-        } else {
-	  // direct flight case
-          Integer tempC = new Integer(targetBook.fid);
-          if(!f.contains(tempC)) {
-	    int originalSingleCapacity = checkFlightCapacity(targetBook.fid);
-            Flight tempFix = new Flight(targetBook.fid, originalSingleCapacity);
-            Integer intObjC = new Integer(targetBook.fid);
-            f.add(intObjC);
-            capacityReset[resetCount] = tempFix;
-            resetCount++;
-          }
-
-	  reduceCapacityStatement.clearParameters();
-	  reduceCapacityStatement.setInt(1, targetBook.fid);
-          reduceCapacityStatement.executeUpdate();
-        
-          createReservationStatement.clearParameters();
-	  createReservationStatement.setInt(1, targetBook.dayOfMonth);
-          createReservationStatement.setString(2, username);
-          createReservationStatement.setInt(3, targetBook.fid);
-	  createReservationStatement.setNull(4, Types.INTEGER);
- 	  createReservationStatement.setInt(5, targetBook.price);
-	  createReservationStatement.setInt(6, 0);
-          createReservationStatement.setInt(7, 0);
-	  createReservationStatement.setInt(8, masterResId);
-          createReservationStatement.executeUpdate();
-	  //System.out.println("value of id is: " + masterResId);
-	  masterResId++;
-	  //System.out.println("value of id after increment is: " + masterResId);
-
-          return "Booked flight(s), reservation ID: " + (masterResId - 1) + "\n";
-        } 
-      } else {
-       // System.out.println("RIGHT BEEFORE ROLLBACK2");
-        rollbackTransaction();
-	return "Booking failed\n";
-	//return "first flight has no capacity";
+      if(resId == FlightStore.BOOKING_FAILED) {
+        // a booking that timed out in the booking pipeline may still be made
+        changeReservations(session, null);
+        BOOK_FAILED.increment();
+        return "Booking failed\n";
+      }
+      invalidateSearches(targetBook.fid, targetBook.fid2);
+      reservations = changeReservations(session, reservations);
+      if(reservations != null) {
+        int at = reservations.size();
+        while(at > 0 && reservations.get(at - 1).reservationId > resId) {
+          at--;
+        }
+        reservations.add(at, reservation(resId, targetBook));
       }
+      BOOKED.increment();
+      return "Booked flight(s), reservation ID: " + resId + "\n";
     } catch(Exception E) {
       //E.printStackTrace();
-      //rollbackTransaction();
-      failure = "Booking failed\n";
+      changeReservations(session, null);
+      BOOK_FAILED.increment();
+      return "Booking failed\n";
     }
-    //System.out.println("RIGHT BEEFORE ROLLBACK3");
-    try {rollbackTransaction();} catch(Exception E) {}
-    return failure;
   }
 
   /**
    * Implements the reservations function.
    *
+   * @param session
+   *
    * @return If no user has logged in, then return "Cannot view reservations, not logged in\n"
    * If the user has no reservations, then return "No reservations found\n"
    * For all other errors, return "Failed to retrieve reservations\n"
@@ -803,87 +550,172 @@ public class Query
    *
    * Each flight should be printed using the same format as in the {@code Flight} class.
    *
+   * The session keeps the reservations it reads, and its own book, pay and cancel commands apply
+   * their changes to that copy, so listing them again doesn't go to the store. A change made by
+   * another session of the same user in this JVM, or by clearTables, makes every session read
+   * them again; a change made by another process is not seen until the user next logs in.
+   *
    * @see Flight#toString()
    */
-  public String transaction_reservations()
+  public String transaction_reservations(Session session)
   {
+    if(session.username == null) {
+      return "Cannot view reservations, not logged in\n";
+    }
+
     try {
-      boolean foundRes = false;
-      if(username == null) {
-        return "Cannot view reservations, not logged in\n";
-      }
-      StringBuffer sb2 = new StringBuffer();
-      retrieveReservationsStatement.clearParameters();
-      retrieveReservationsStatement.setString(1, username);
-      ResultSet currentReservations = retrieveReservationsStatement.executeQuery();
-      
-      while(currentReservations.next()) {
-        
-        foundRes = true;
-        boolean isPaid = false;
-        boolean isCanceled = false;
-
-        if(currentReservations.getInt("paid") == 1) {
-          isPaid = true;
-        }
-     
-        if(currentReservations.getInt("canceled") == 1) {
-          isCanceled = true;
+      List<FlightStore.Reservation> reservations = cachedReservations(session);
+      if(reservations != null) {
+        RESERVATIONS_CACHED.increment();
+      } else {
+        // read before the store, so a change committed meanwhile shows up as one this copy hasn't seen
+        long changesSeen = reservationChanges.get(changeSlot(session.username));
+        reservations = store.reservations(session.username);
+        if(reservationCache) {
+          session.reservations = reservations;
+          session.reservationChangesSeen = changesSeen;
         }
-
-        int result_fid = currentReservations.getInt("fid");
-        int result_dayOfMonth = currentReservations.getInt("day_of_month");
-        String result_carrierId = currentReservations.getString("carrier_id");
-        int result_flightNum = currentReservations.getInt("flight_num");
-        String result_origin = currentReservations.getString("origin_city");
-        String result_dest = currentReservations.getString("dest_city");
-        int result_time = currentReservations.getInt("actual_time");
-        int result_capacity = currentReservations.getInt("capacity");
-        int result_price = currentReservations.getInt("price");
-
-        int result_fid2 = currentReservations.getInt("fid2");
-        int result_dayOfMonth2 = currentReservations.getInt("day_of_month2");
-        String result_carrierId2 = currentReservations.getString("carrier_id2");
-        int result_flightNum2 = currentReservations.getInt("flight_num2");
-        String result_origin2 = currentReservations.getString("origin_city2");
-        String result_dest2 = currentReservations.getString("dest_city2");
-        int result_time2 = currentReservations.getInt("actual_time2");
-        int result_capacity2 = currentReservations.getInt("capacity2");
-        int result_price2 = currentReservations.getInt("price2");
-        
-        
-        Flight tempF = new Flight(result_fid, result_dayOfMonth, result_carrierId, result_flightNum, 
-                                  result_origin, result_dest, result_time, result_capacity, result_price);
-
-        if(!isCanceled) { 
-          sb2.append("Reservation " + currentReservations.getInt("resID") + " paid: " + isPaid + ":" + "\n");      
-          sb2.append(tempF.toString());
-          currentReservations.getInt("fid2");
-          if(!currentReservations.wasNull()) {
-            Flight tempTwoHopFlightB = new Flight(result_fid2, result_dayOfMonth2, result_carrierId2, result_flightNum2, 
-                                                result_origin2, result_dest2, result_time2, result_capacity2, result_price2);
-            sb2.append(tempTwoHopFlightB.toString());
-          }
+        if(reservations.isEmpty()) {
+          RESERVATIONS_EMPTY.increment();
+        } else {
+          RESERVATIONS_FOUND.increment();
         }
       }
-      currentReservations.close();
-      if(!foundRes) {
+      if(reservations.isEmpty()) {
         return "No reservations found\n";
       }
-      
-      return sb2.toString();
-      
-      
+
+      StringBuilder sb = session.responseBuffer();
+      for(FlightStore.Reservation reservation : reservations) {
+        appendReservation(sb, reservation);
+      }
+      return sb.toString();
+
     } catch(Exception E) {
       //E.printStackTrace();
+      RESERVATIONS_FAILED.increment();
       return "Failed to retrieve reservations\n";
     }
+  }
 
+  /**
+   * Lists one page of the user's reservations: those with an ID above {@code afterId}, in ID
+   * order, at most {@code limit} of them. They are printed as by
+   * {@link #transaction_reservations(Session)}, followed by
+   * "More reservations after [reservation ID]\n" when the page is full, which is where the next
+   * page starts. A {@code limit} below 1 gives an empty page.
+   *
+   * @see #transaction_reservations(Session, int, int, Appendable)
+   */
+  public String transaction_reservations(Session session, int afterId, int limit)
+  {
+    StringBuilder sb = session.responseBuffer();
+    try {
+      listReservations(session, afterId, limit, sb, new StringBuilder(256));
+    } catch(IOException E) {
+      // a StringBuilder doesn't throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes a page of reservations, as {@link #transaction_reservations(Session, int, int)}
+   * returns it, to {@code out}. Each reservation is written as soon as the store reads it, so a
+   * page takes the same memory however many reservations it holds.
+   */
+  public void transaction_reservations(Session session, int afterId, int limit, Appendable out) throws IOException
+  {
+    listReservations(session, afterId, limit, out, session.responseBuffer());
+  }
+
+  // writes a page of reservations to out, putting each one together in row first
+  private void listReservations(Session session, int afterId, int limit, Appendable out, StringBuilder row)
+      throws IOException
+  {
+    if(session.username == null) {
+      out.append("Cannot view reservations, not logged in\n");
+      return;
+    }
+    if(limit < 1) {
+      RESERVATIONS_EMPTY.increment();
+      out.append("No reservations found\n");
+      return;
+    }
+
+    ReservationWriter writer = new ReservationWriter(out, row);
+    List<FlightStore.Reservation> reservations = cachedReservations(session);
+    if(reservations != null) {
+      for(FlightStore.Reservation reservation : reservations) {
+        if(writer.count == limit) {
+          break;
+        }
+        if(reservation.reservationId > afterId) {
+          writer.add(reservation);
+        }
+      }
+      RESERVATIONS_CACHED.increment();
+    } else {
+      try {
+        store.reservations(session.username, afterId, limit, writer);
+      } catch(IOException E) {
+        // out is gone; nothing more can be written to it
+        throw E;
+      } catch(Exception E) {
+        //E.printStackTrace();
+        RESERVATIONS_FAILED.increment();
+        out.append("Failed to retrieve reservations\n");
+        return;
+      }
+      if(writer.count == 0) {
+        RESERVATIONS_EMPTY.increment();
+      } else {
+        RESERVATIONS_FOUND.increment();
+      }
+    }
+
+    if(writer.count == 0) {
+      out.append("No reservations found\n");
+    } else if(writer.count == limit) {
+      out.append("More reservations after ").append(Integer.toString(writer.lastId)).append("\n");
+    }
+  }
+
+  // prints reservations as the store hands them over
+  private static class ReservationWriter implements FlightStore.ReservationSink
+  {
+    final Appendable out;
+    final StringBuilder row;
+    int count = 0;
+    int lastId = 0;
+
+    ReservationWriter(Appendable out, StringBuilder row) {
+      this.out = out;
+      this.row = row;
+    }
+
+    public void add(FlightStore.Reservation reservation) throws IOException {
+      row.setLength(0);
+      appendReservation(row, reservation);
+      out.append(row);
+      count++;
+      lastId = reservation.reservationId;
+    }
+  }
+
+  private static void appendReservation(StringBuilder sb, FlightStore.Reservation reservation)
+  {
+    sb.append("Reservation ").append(reservation.reservationId).append(" paid: ").append(reservation.paid)
+      .append(":").append('\n');
+    reservation.first.appendTo(sb);
+    if(reservation.second != null) {
+      reservation.second.appendTo(sb);
+    }
   }
 
   /**
    * Implements the cancel operation.
    *
+   * @param session
    * @param reservationId the reservation ID to cancel
    *
    * @return If no user has logged in, then return "Cannot cancel reservations, not logged in\n"
@@ -893,78 +725,43 @@ public class Query
    *
    * Even though a reservation has been canceled, its ID should not be reused by the system.
    */
-  public String transaction_cancel(int reservationId)
+  public String transaction_cancel(Session session, int reservationId)
   {
     // only implement this if you are interested in earning extra credit for the HW!
-    if(username == null) {
-      return "Cannot cancel reservations, not logged in\n"; 
+    if(session.username == null) {
+      return "Cannot cancel reservations, not logged in\n";
     }
+
+    List<FlightStore.Reservation> reservations = cachedReservations(session);
     try {
-      beginTransaction();
-      listReservationStatement.clearParameters();
-      listReservationStatement.setInt(1, reservationId);
-      listReservationStatement.setString(2, username);
-      ResultSet cancelTarget = listReservationStatement.executeQuery();
-
-      if(!cancelTarget.next() || cancelTarget.getInt("canceled") == 1) {
-        cancelTarget.close();
-        rollbackTransaction();
-        //System.out.println("check to see if canceled = 1");
+      int[] legs = store.cancel(session.username, reservationId);
+      if(legs == null) {
+        CANCEL_FAILED.increment();
         return "Failed to cancel reservation " + reservationId + "\n";
-      } else {
-        int flight1 = cancelTarget.getInt("flight_id");  
-        int f1cap = checkFlightCapacity(flight1) + 1;     
-        cancelAdjustStatement.clearParameters(); // sets Reservations.canceled = 1 and increments capacity by 1 
-        cancelAdjustStatement.setInt(1, reservationId);
-        cancelAdjustStatement.setInt(2, f1cap);
-       // System.out.println("incrementing capacity");
-        cancelAdjustStatement.setInt(3, flight1);
-        cancelAdjustStatement.executeUpdate();
-
-             
-        int flight2 = 0;
-        int f2cap = 0;
-        cancelTarget.getInt("flight_id2");
-        if(!cancelTarget.wasNull()) {
-          flight2 = cancelTarget.getInt("flight_id2");  
-          f2cap = checkFlightCapacity(flight2) + 1;
-        }
-
-        if(flight2 != 0) {
-          cancelAdjustStatement.clearParameters();
-          cancelAdjustStatement.setInt(1, reservationId);
-          cancelAdjustStatement.setInt(2, f2cap);
-          System.out.println("incrementing capacity");
-          cancelAdjustStatement.setInt(3, flight2);
-          cancelAdjustStatement.executeUpdate();  
-        } 
-        if(cancelTarget.getInt("paid") == 1) {
-
-        int refundAmount = cancelTarget.getInt("price");
-                                
-          refundStatement.clearParameters(); // sets paid = 0, canceled = 1, refunds money for flight
-          refundStatement.setInt(1, reservationId);
-          refundStatement.setInt(2, reservationId);
-          refundStatement.setInt(3, refundAmount);
-          refundStatement.setString(4, username); 
-          refundStatement.executeUpdate();       
+      }
+      invalidateSearches(legs[0], legs[1]);
+      reservations = changeReservations(session, reservations);
+      if(reservations != null) {
+        int at = indexOf(reservations, reservationId);
+        if(at < 0) {
+          session.reservations = null;
+        } else {
+          reservations.remove(at);
         }
-        cancelTarget.close();
-        commitTransaction();
-        return "Canceled reservation " + reservationId + "\n";
-      }  
+      }
+      CANCELED.increment();
+      return "Canceled reservation " + reservationId + "\n";
+    } catch(Exception E) {
+      changeReservations(session, null);
+      CANCEL_FAILED.increment();
+      return "Failed to cancel reservation " + reservationId + "\n";
     }
-    catch (Exception E) {}
-    try{rollbackTransaction();}
-    catch (Exception E) {
-      //E.printStackTrace();      
-    }          
-    return "Failed to cancel reservation " + reservationId + "\n";
   }
 
   /**
    * Implements the pay function.
    *
+   * @param session
    * @param reservationId the reservation to pay for.
    *
    * @return If no user has logged in, then return "Cannot pay, not logged in\n"
@@ -977,87 +774,109 @@ public class Query
    * If successful, return "Paid reservation: [reservationId] remaining balance: [balance]\n"
    * where [balance] is the remaining balance in the user's account.
    */
-  public String transaction_pay (int reservationId)
+  public String transaction_pay (Session session, int reservationId)
   {
-    if(username == null) {
-      return "Cannot pay, not logged in\n"; 
+    if(session.username == null) {
+      return "Cannot pay, not logged in\n";
     }
-    String failure = "";
+
+    List<FlightStore.Reservation> reservations = cachedReservations(session);
     try {
-      beginTransaction();      
-      listReservationStatement.clearParameters();
-      listReservationStatement.setInt(1, reservationId);
-      listReservationStatement.setString(2, username);
-      ResultSet paymentResults = listReservationStatement.executeQuery();
-      if (!paymentResults.next() || paymentResults.getInt("paid") == 1) {
-        paymentResults.close();
-        rollbackTransaction();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";        
+      FlightStore.Payment payment = store.pay(session.username, reservationId);
+      if(payment.outcome == FlightStore.NOT_FOUND) {
+        PAY_NOT_FOUND.increment();
+        return "Cannot find unpaid reservation " + reservationId + " under user: " + session.username + "\n";
       }
-      
-      int fee = paymentResults.getInt("price");
-      retrieveBalanceStatement.clearParameters();
-      retrieveBalanceStatement.setString(1, username);
-      ResultSet balances = retrieveBalanceStatement.executeQuery();
-      balances.next();
-      int currBal = balances.getInt("initAmount");
-      if(currBal < fee) {
-        rollbackTransaction();
-        return "User has only " + currBal + " in account but itinerary costs " + fee + "\n";
+      if(payment.outcome == FlightStore.INSUFFICIENT_BALANCE) {
+        PAY_INSUFFICIENT.increment();
+        return "User has only " + payment.balance + " in account but itinerary costs " + payment.price + "\n";
       }
-      int newBal = currBal - fee;
-      balances.close();
-      
-      makePaymentStatement.clearParameters();
-      makePaymentStatement.setInt(1, newBal);
-      makePaymentStatement.setString(2, username);
-      makePaymentStatement.setInt(3, 1);
-      makePaymentStatement.setInt(4, reservationId);
-      makePaymentStatement.executeUpdate();
-      commitTransaction();
-      return "Paid reservation: " + reservationId + " remaining balance: " + newBal + "\n";
-    }
-    catch (Exception E) {
+      reservations = changeReservations(session, reservations);
+      if(reservations != null) {
+        int at = indexOf(reservations, reservationId);
+        if(at < 0) {
+          session.reservations = null;
+        } else {
+          FlightStore.Reservation unpaid = reservations.get(at);
+          reservations.set(at, new FlightStore.Reservation(reservationId, true, unpaid.first, unpaid.second));
+        }
+      }
+      PAID.increment();
+      return "Paid reservation: " + reservationId + " remaining balance: " + payment.balance + "\n";
+    } catch(Exception E) {
       //E.printStackTrace();
-      failure = "Failed to pay for reservation " + reservationId + "\n";
+      changeReservations(session, null);
+      PAY_FAILED.increment();
+      return "Failed to pay for reservation " + reservationId + "\n";
     }
-    try {rollbackTransaction();} catch(Exception E) {}
-    return failure;
   }
 
   /* some utility functions below */
 
-  public void beginTransaction() throws SQLException
+  // the slot of reservationChanges counting the changes to this user's reservations; names that the
+  // store takes to be the same user always share one
+  private static int changeSlot(String username)
   {
-    conn.setAutoCommit(false);
-    beginTransactionStatement.executeUpdate();
+    return (username.trim().toLowerCase().hashCode() & 0x7fffffff) % reservationChanges.length();
   }
 
-  public void commitTransaction() throws SQLException
+  // the session's copy of its user's reservations, or null if it has none or it is out of date
+  private List<FlightStore.Reservation> cachedReservations(Session session)
   {
-    commitTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+    if(session.reservations == null
+       || session.reservationChangesSeen != reservationChanges.get(changeSlot(session.username))) {
+      return null;
+    }
+    return session.reservations;
   }
 
-  public void rollbackTransaction() throws SQLException
+  // records that the session changed its user's reservations, and returns the copy the change should be made
+  // to: the one it had before, from cachedReservations, unless another change was recorded since then
+  private List<FlightStore.Reservation> changeReservations(Session session, List<FlightStore.Reservation> before)
   {
-    rollbackTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
+    long changes = reservationChanges.incrementAndGet(changeSlot(session.username));
+    if(before == null || before != session.reservations || changes != session.reservationChangesSeen + 1) {
+      session.reservations = null;
+      return null;
+    }
+    session.reservationChangesSeen = changes;
+    return before;
   }
 
-  /**
-   * Shows an example of using PreparedStatements after setting arguments. You don't need to
-   * use this method if you don't want to.
-   */
-  private int checkFlightCapacity(int fid) throws SQLException
+  private static int indexOf(List<FlightStore.Reservation> reservations, int reservationId)
+  {
+    for(int i = 0; i < reservations.size(); i++) {
+      if(reservations.get(i).reservationId == reservationId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  // the reservation just made for a booked itinerary, as the store would list it; the second leg shows the price
+  // of the first, as the reservations query has always done
+  private static FlightStore.Reservation reservation(int reservationId, Flight itinerary)
   {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+    Flight first = new Flight(itinerary.fid, itinerary.dayOfMonth, itinerary.carrierId, itinerary.flightNum,
+                              itinerary.originCity, itinerary.destCity, itinerary.time, itinerary.capacity,
+                              itinerary.price);
+    Flight second = null;
+    if(itinerary.fid2 != 0) {
+      second = new Flight(itinerary.fid2, itinerary.dayOfMonth2, itinerary.carrierId2, itinerary.flightNum2,
+                          itinerary.originCity2, itinerary.destCity2, itinerary.time2, itinerary.capacity2,
+                          itinerary.price);
+    }
+    return new FlightStore.Reservation(reservationId, false, first, second);
+  }
+
+  // drops the cached searches listing flights whose seats just changed; fid2 is 0 for direct flights
+  private void invalidateSearches(int fid, int fid2)
+  {
+    if(searchCache != null) {
+      searchCache.invalidate(fid);
+      if(fid2 != 0) {
+        searchCache.invalidate(fid2);
+      }
+    }
   }
 }
@@ -0,0 +1,112 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands out reservation IDs that are unique across every process using the same database,
+ * and across restarts.
+ *
+ * IDs are leased in blocks of {@code blockSize}, on a connection of its own in autocommit mode,
+ * so the sequence row is only locked for the one UPDATE and never for the length of a booking,
+ * and bookings in different processes don't wait on each other for it. Inside the JVM IDs are
+ * taken from the current block without locking; only the thread that finds the block used up
+ * leases the next one. IDs are not handed out in order across processes, and an ID taken by a
+ * booking that then fails or is retried is never used, which leaves a gap.
+ *
+ * Gap-free IDs are the opt-in: with a block size of 1 no allocator is made, and each booking
+ * takes its ID with {@link #LEASE_BLOCK} on the booking's connection, inside the booking's
+ * transaction. The sequence row then stays locked until the booking commits, so bookings in
+ * every process take turns on it, but a booking that rolls back, fails or is retried gives its
+ * ID back and every successful booking gets the next ID in the sequence.
+ */
+public class ReservationIdAllocator
+{
+  // takes the next ? IDs; returns the first of them
+  static final String LEASE_BLOCK = "SET NOCOUNT ON; "
+                                          + "UPDATE ReservationIdSequence SET next_id = next_id + ? "
+                                          + "OUTPUT deleted.next_id AS first_id";
+
+  static final String RESET_SEQUENCE = "UPDATE ReservationIdSequence SET next_id = 1";
+
+  // IDs [next, end) that this JVM may hand out
+  private static class Block
+  {
+    final AtomicInteger next;
+    final int end;
+
+    Block(int first, int end) {
+      this.next = new AtomicInteger(first);
+      this.end = end;
+    }
+  }
+
+  private static final Block EMPTY = new Block(0, 0);
+
+  private final AtomicReference<Block> current = new AtomicReference<Block>(EMPTY);
+  private final int blockSize;
+
+  private final Connection conn;
+  private final PreparedStatement leaseStatement;
+  private final PreparedStatement resetStatement;
+
+  /**
+   * @param conn a connection used only by this allocator; it is switched to autocommit
+   * @param blockSize number of IDs leased at a time
+   */
+  public ReservationIdAllocator(Connection conn, int blockSize) throws SQLException
+  {
+    this.conn = conn;
+    this.blockSize = Math.max(1, blockSize);
+    conn.setAutoCommit(true);
+    leaseStatement = conn.prepareStatement(LEASE_BLOCK);
+    resetStatement = conn.prepareStatement(RESET_SEQUENCE);
+  }
+
+  /**
+   * @return the next reservation ID of the leased block
+   */
+  public int next() throws SQLException
+  {
+    while (true) {
+      Block block = current.get();
+      int id = block.next.getAndIncrement();
+      if (id < block.end) {
+        return id;
+      }
+      lease(block);
+    }
+  }
+
+  // replaces the used up block, unless another thread already did
+  private synchronized void lease(Block exhausted) throws SQLException
+  {
+    if (current.get() != exhausted) {
+      return;
+    }
+    leaseStatement.clearParameters();
+    leaseStatement.setInt(1, blockSize);
+    ResultSet result = leaseStatement.executeQuery();
+    result.next();
+    int first = result.getInt("first_id");
+    result.close();
+    current.set(new Block(first, first + blockSize));
+  }
+
+  /**
+   * Restarts the sequence at 1 and drops what is left of this JVM's block. Blocks already leased
+   * by other processes are not affected.
+   */
+  public synchronized void reset() throws SQLException
+  {
+    resetStatement.executeUpdate();
+    current.set(EMPTY);
+  }
+
+  public void close() throws SQLException
+  {
+    conn.close();
+  }
+}
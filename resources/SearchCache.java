@@ -0,0 +1,160 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded LRU cache of search responses with a time to live. Every entry remembers the
+ * flights it lists, so that a change to the seats of one flight only drops the responses
+ * that mention it.
+ *
+ * All methods are synchronized; the cache is shared by every session in the JVM. What becomes
+ * of each lookup and entry is counted under search_cache.* in {@link Metrics}, so the stats
+ * command shows whether the cache is the right size.
+ */
+public class SearchCache<V>
+{
+  private static final Metrics.Counter HITS = Metrics.counter("search_cache.hits");
+  private static final Metrics.Counter MISSES = Metrics.counter("search_cache.misses");
+  // entries dropped to stay within the size bound, because they outlived the time to live, and because the seats
+  // of a flight they list changed
+  private static final Metrics.Counter EVICTIONS = Metrics.counter("search_cache.evictions");
+  private static final Metrics.Counter EXPIRATIONS = Metrics.counter("search_cache.expirations");
+  private static final Metrics.Counter INVALIDATIONS = Metrics.counter("search_cache.invalidations");
+
+  private static class Entry<V>
+  {
+    final String key;
+    final V value;
+    final int[] fids;
+    final long expiresAt;
+
+    Entry(String key, V value, int[] fids, long expiresAt) {
+      this.key = key;
+      this.value = value;
+      this.fids = fids;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  private final int maxEntries;
+  private final long ttlMillis;
+
+  // access ordered, so the eldest entry is the least recently used one
+  private final LinkedHashMap<String, Entry<V>> entries;
+
+  // fid -> keys of the entries listing that flight
+  private final Map<Integer, Set<String>> keysByFid = new HashMap<Integer, Set<String>>();
+
+
+  public SearchCache(int maxEntries, long ttlMillis)
+  {
+    this.maxEntries = maxEntries;
+    this.ttlMillis = ttlMillis;
+    this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+  }
+
+  /**
+   * Builds the cache key of a search.
+   */
+  public static String key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                           int numberOfItineraries)
+  {
+    return originCity + "\n" + destinationCity + "\n" + (directFlight ? 1 : 0) + "\n" + dayOfMonth + "\n"
+           + numberOfItineraries;
+  }
+
+  /**
+   * @return the cached value, or null if there is none or it has expired
+   */
+  public synchronized V get(String key)
+  {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      MISSES.increment();
+      return null;
+    }
+    if (entry.expiresAt <= System.currentTimeMillis()) {
+      remove(entry);
+      EXPIRATIONS.increment();
+      MISSES.increment();
+      return null;
+    }
+    HITS.increment();
+    return entry.value;
+  }
+
+  /**
+   * Caches {@code value} under {@code key}. {@code fids} are the flights listed in it.
+   */
+  public synchronized void put(String key, V value, int[] fids)
+  {
+    Entry<V> previous = entries.get(key);
+    if (previous != null) {
+      remove(previous);
+    }
+
+    Entry<V> entry = new Entry<V>(key, value, fids, System.currentTimeMillis() + ttlMillis);
+    entries.put(key, entry);
+    for (int fid : fids) {
+      Set<String> keys = keysByFid.get(fid);
+      if (keys == null) {
+        keys = new HashSet<String>();
+        keysByFid.put(fid, keys);
+      }
+      keys.add(key);
+    }
+
+    while (entries.size() > maxEntries) {
+      Iterator<Entry<V>> eldest = entries.values().iterator();
+      remove(eldest.next());
+      EVICTIONS.increment();
+    }
+  }
+
+  /**
+   * Drops every response listing flight {@code fid}, because its seats have changed.
+   */
+  public synchronized void invalidate(int fid)
+  {
+    Set<String> keys = keysByFid.get(fid);
+    if (keys == null) {
+      return;
+    }
+    for (String key : new ArrayList<String>(keys)) {
+      Entry<V> entry = entries.get(key);
+      if (entry != null) {
+        remove(entry);
+        INVALIDATIONS.increment();
+      }
+    }
+  }
+
+  public synchronized void clear()
+  {
+    entries.clear();
+    keysByFid.clear();
+  }
+
+  private void remove(Entry<V> entry)
+  {
+    entries.remove(entry.key);
+    for (int fid : entry.fids) {
+      Set<String> keys = keysByFid.get(fid);
+      if (keys != null) {
+        keys.remove(entry.key);
+        if (keys.isEmpty()) {
+          keysByFid.remove(fid);
+        }
+      }
+    }
+  }
+
+  public synchronized int size()
+  {
+    return entries.size();
+  }
+}
@@ -0,0 +1,511 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Remaining seats of every flight, kept in memory so that booking and canceling can take and
+ * give back seats without a round trip to the Capacities table.
+ *
+ * Seats live in an {@link AtomicIntegerArray}, found through an open addressing table of fids
+ * that is built once at startup and never changes, so reading and claiming a seat takes no lock
+ * and boxes nothing. A seat is claimed with compare-and-set and only while the count is above
+ * zero, so two sessions in the same JVM can never both take the last seat. Processes don't see
+ * each other's claims; inventory mode is meant for a single node booking against the database.
+ *
+ * Capacities is updated behind the bookings: committed seat changes are added up per fid and a
+ * background thread writes them as relative updates in one batch every {@code flushMillis}.
+ * Reservations stays the record of what was booked, so nothing is lost if the process dies
+ * before a flush. At startup the seats are rebuilt as Flights.capacity minus the active
+ * reservations on each flight, and Capacities is brought back in line with them.
+ *
+ * When {@code refreshMillis} is set, the same thread also follows what other processes do to
+ * Capacities. SQL Server bumps Capacities.row_version on every update, so each refresh fetches
+ * only the rows changed since the last one, up to MIN_ACTIVE_ROWVERSION() so that a transaction
+ * still running is picked up once it commits rather than skipped. Every row changed by someone
+ * else moves the local seats by the difference from the value last seen; this process's own
+ * flushes are already counted and come back as no change. Claims are still local, so two
+ * processes can both take the last seat within one refresh interval; the capacity_feed.lag
+ * timer shows how old the local counts were at each refresh.
+ */
+public class SeatInventory
+{
+  // seats booked on every flight by reservations that are not canceled
+  private static final String BOOKED_SEATS = "SELECT L.fid AS fid, COUNT(*) AS booked "
+                                           + "FROM (SELECT flight_id AS fid FROM Reservations WHERE canceled = 0 "
+                                           + "UNION ALL "
+                                           + "SELECT flight_id2 FROM Reservations WHERE canceled = 0 AND flight_id2 IS NOT NULL) AS L "
+                                           + "GROUP BY L.fid";
+
+  private static final String LOAD_SEATS = "SELECT F.fid AS fid, F.capacity AS capacity, "
+                                         + "F.capacity - ISNULL(B.booked, 0) AS remaining "
+                                         + "FROM Flights F LEFT OUTER JOIN (" + BOOKED_SEATS + ") AS B ON B.fid = F.fid";
+
+  private static final String RECONCILE_CAPACITIES = "UPDATE C SET capacity = F.capacity - ISNULL(B.booked, 0) "
+                                                   + "FROM Capacities C INNER JOIN Flights F ON F.fid = C.fid "
+                                                   + "LEFT OUTER JOIN (" + BOOKED_SEATS + ") AS B ON B.fid = C.fid "
+                                                   + "WHERE C.capacity <> F.capacity - ISNULL(B.booked, 0)";
+
+  private static final String ADJUST_CAPACITY = "UPDATE Capacities SET capacity = capacity + ? WHERE fid = ?";
+
+  // versions below this one belong to committed changes; anything newer may still be rolled back or committed late
+  private static final String CURRENT_HORIZON = "SELECT CAST(MIN_ACTIVE_ROWVERSION() AS bigint) AS horizon";
+
+  // the rows of Capacities changed from version ? up to the current horizon; a last row without a fid carries that
+  // horizon, where the next refresh starts
+  private static final String CHANGED_CAPACITIES = "SET NOCOUNT ON; "
+                                                 + "DECLARE @since binary(8) = CAST(CAST(? AS bigint) AS binary(8)); "
+                                                 + "DECLARE @horizon binary(8) = MIN_ACTIVE_ROWVERSION(); "
+                                                 + "SELECT fid, capacity, CAST(@horizon AS bigint) AS horizon FROM Capacities "
+                                                 + "WHERE row_version >= @since AND row_version < @horizon "
+                                                 + "UNION ALL SELECT NULL, NULL, CAST(@horizon AS bigint);";
+
+  private static final Metrics.Timer REFRESH_LAG = Metrics.timer("capacity_feed.lag");
+  private static final Metrics.Counter REFRESH_ROWS = Metrics.counter("capacity_feed.rows");
+  private static final Metrics.Counter REFRESH_SEATS = Metrics.counter("capacity_feed.seats_moved");
+  private static final Metrics.Counter REFRESH_FAILURES = Metrics.counter("capacity_feed.failures");
+
+  // bookings turned away because a leg was full; batches written to Capacities, the rows they updated, and the
+  // batches that failed and were kept for the next flush
+  private static final Metrics.Counter REJECTED = Metrics.counter("seat_inventory.rejected");
+  private static final Metrics.Counter FLUSHES = Metrics.counter("seat_inventory.flushes");
+  private static final Metrics.Counter ROWS_FLUSHED = Metrics.counter("seat_inventory.rows_flushed");
+  private static final Metrics.Counter FLUSH_FAILURES = Metrics.counter("seat_inventory.flush_failures");
+
+  private static final int EMPTY = Integer.MIN_VALUE;
+
+  // open addressing table: keys[slot] is a fid, or EMPTY; the seats of that fid are at the same slot
+  private final int[] keys;
+  private final int mask;
+
+  // Flights.capacity, what clearTables() puts back
+  private final int[] capacity;
+  private final AtomicIntegerArray seats;
+
+  // committed seat changes not yet written to Capacities, and whether the slot is queued for the next flush
+  private final AtomicIntegerArray unflushed;
+  private final AtomicIntegerArray queued;
+
+  // the slots queued for the next flush, in a ring as big as the table: a slot is in it at most once, so it never
+  // fills. record claims a position at dirtyTail and then writes the slot there; until it does the entry is -1.
+  // dirtyHead is the next position a flush reads, and is only touched under the lock
+  private final AtomicIntegerArray dirty;
+  private final AtomicInteger dirtyTail = new AtomicInteger();
+  private int dirtyHead;
+
+  // Capacities as this process last knew it, its own flushes included; only touched under the lock
+  private final int[] stored;
+
+  private final Connection conn;
+  private final PreparedStatement adjustStatement;
+  private final PreparedStatement changesStatement;
+  private final ScheduledExecutorService flusher;
+
+  // where the next refresh starts, and when the last one that got through started
+  private long since;
+  private volatile long refreshedAt = System.nanoTime();
+
+  private SeatInventory(Connection conn, int[] fids, int[] capacities, int[] remaining, int count,
+                        long flushMillis, long refreshMillis, long since) throws SQLException
+  {
+    int tableSize = Integer.highestOneBit(Math.max(2, count * 2 - 1)) << 1;
+    keys = new int[tableSize];
+    Arrays.fill(keys, EMPTY);
+    mask = tableSize - 1;
+    capacity = new int[tableSize];
+    seats = new AtomicIntegerArray(tableSize);
+    unflushed = new AtomicIntegerArray(tableSize);
+    queued = new AtomicIntegerArray(tableSize);
+    dirty = new AtomicIntegerArray(tableSize);
+    for (int i = 0; i < tableSize; i++) {
+      dirty.set(i, -1);
+    }
+    stored = new int[tableSize];
+
+    for (int i = 0; i < count; i++) {
+      int slot = hash(fids[i]) & mask;
+      while (keys[slot] != EMPTY) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = fids[i];
+      capacity[slot] = capacities[i];
+      seats.set(slot, remaining[i]);
+      stored[slot] = remaining[i];
+    }
+
+    this.conn = conn;
+    this.adjustStatement = conn.prepareStatement(ADJUST_CAPACITY);
+    this.changesStatement = (refreshMillis > 0) ? conn.prepareStatement(CHANGED_CAPACITIES) : null;
+    this.since = since;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "seat-inventory-flush");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (SQLException e) {
+          // the changes are queued again and go out with the next flush
+        }
+      }
+    }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    if (refreshMillis > 0) {
+      flusher.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            refresh();
+          } catch (SQLException e) {
+            // nothing was applied; the next refresh starts from the same version
+            REFRESH_FAILURES.increment();
+          }
+        }
+      }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Rebuilds the seats of every flight from Flights and Reservations, writes them to Capacities
+   * where it disagrees, and starts flushing every {@code flushMillis} and, unless
+   * {@code refreshMillis} is 0, taking in the changes made by other processes that often.
+   *
+   * @param conn a connection used only by this inventory; it is switched to autocommit
+   */
+  public static SeatInventory load(Connection conn, long flushMillis, long refreshMillis) throws SQLException
+  {
+    conn.setAutoCommit(true);
+
+    // taken before the seats are read, so a change made meanwhile is fetched again rather than missed
+    long since = 0;
+    if (refreshMillis > 0) {
+      PreparedStatement horizonStatement = conn.prepareStatement(CURRENT_HORIZON);
+      try {
+        ResultSet horizon = horizonStatement.executeQuery();
+        horizon.next();
+        since = horizon.getLong("horizon");
+        horizon.close();
+      } finally {
+        horizonStatement.close();
+      }
+    }
+
+    int[] fids = new int[1024];
+    int[] capacities = new int[1024];
+    int[] remaining = new int[1024];
+    int count = 0;
+
+    PreparedStatement loadStatement = conn.prepareStatement(LOAD_SEATS);
+    try {
+      ResultSet rows = loadStatement.executeQuery();
+      while (rows.next()) {
+        if (count == fids.length) {
+          fids = Arrays.copyOf(fids, count * 2);
+          capacities = Arrays.copyOf(capacities, count * 2);
+          remaining = Arrays.copyOf(remaining, count * 2);
+        }
+        fids[count] = rows.getInt("fid");
+        capacities[count] = rows.getInt("capacity");
+        remaining[count] = rows.getInt("remaining");
+        count++;
+      }
+      rows.close();
+    } finally {
+      loadStatement.close();
+    }
+
+    PreparedStatement reconcileStatement = conn.prepareStatement(RECONCILE_CAPACITIES);
+    try {
+      reconcileStatement.executeUpdate();
+    } finally {
+      reconcileStatement.close();
+    }
+
+    return new SeatInventory(conn, fids, capacities, remaining, count, Math.max(1, flushMillis),
+                             Math.max(0, refreshMillis), since);
+  }
+
+  private static int hash(int fid)
+  {
+    int h = fid * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  // slot of fid, or -1 if it is not a flight
+  private int slot(int fid)
+  {
+    int slot = hash(fid) & mask;
+    while (true) {
+      int key = keys[slot];
+      if (key == fid) {
+        return slot;
+      }
+      if (key == EMPTY) {
+        return -1;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  /**
+   * Takes a seat on every leg of an itinerary, or on none of them. {@code fid2} is 0 for a
+   * direct flight.
+   *
+   * @return false if a leg is full or unknown
+   */
+  public boolean claim(int fid, int fid2)
+  {
+    if (!claim(slot(fid))) {
+      REJECTED.increment();
+      return false;
+    }
+    if (fid2 != 0 && !claim(slot(fid2))) {
+      seats.incrementAndGet(slot(fid));
+      REJECTED.increment();
+      return false;
+    }
+    return true;
+  }
+
+  private boolean claim(int slot)
+  {
+    if (slot < 0) {
+      return false;
+    }
+    while (true) {
+      int left = seats.get(slot);
+      if (left <= 0) {
+        return false;
+      }
+      if (seats.compareAndSet(slot, left, left - 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Gives back seats taken by {@link #claim} for a booking that did not commit.
+   */
+  public void unclaim(int fid, int fid2)
+  {
+    seats.incrementAndGet(slot(fid));
+    if (fid2 != 0) {
+      seats.incrementAndGet(slot(fid2));
+    }
+  }
+
+  /**
+   * Records that the booking holding seats from {@link #claim} committed, so Capacities loses them too.
+   */
+  public void booked(int fid, int fid2)
+  {
+    record(slot(fid), -1);
+    if (fid2 != 0) {
+      record(slot(fid2), -1);
+    }
+  }
+
+  /**
+   * Gives back the seats of a reservation whose cancellation committed.
+   */
+  public void canceled(int fid, int fid2)
+  {
+    release(slot(fid));
+    if (fid2 != 0) {
+      release(slot(fid2));
+    }
+  }
+
+  private void release(int slot)
+  {
+    if (slot >= 0) {
+      seats.incrementAndGet(slot);
+      record(slot, 1);
+    }
+  }
+
+  private void record(int slot, int delta)
+  {
+    if (slot < 0) {
+      return;
+    }
+    unflushed.addAndGet(slot, delta);
+    if (queued.compareAndSet(slot, 0, 1)) {
+      dirty.set(dirtyTail.getAndIncrement() & mask, slot);
+    }
+  }
+
+  // takes the next queued slot off the ring and clears its mark, so a change made from now on queues it again;
+  // -1 once the ring is empty up to end, or at an entry claimed but not written yet, which the next flush takes
+  private int nextDirty(int end)
+  {
+    if (dirtyHead == end) {
+      return -1;
+    }
+    int slot = dirty.get(dirtyHead & mask);
+    if (slot < 0) {
+      return -1;
+    }
+    dirty.set(dirtyHead & mask, -1);
+    dirtyHead++;
+    queued.set(slot, 0);
+    return slot;
+  }
+
+  /**
+   * @return seats left on {@code fid}, or -1 if it is not a flight
+   */
+  public int remaining(int fid)
+  {
+    int slot = slot(fid);
+    return slot < 0 ? -1 : seats.get(slot);
+  }
+
+  /**
+   * Writes every seat change recorded so far to Capacities in one batch. If the batch fails the
+   * changes are kept for the next flush.
+   */
+  public synchronized void flush() throws SQLException
+  {
+    int end = dirtyTail.get();
+    if (dirtyHead == end) {
+      return;
+    }
+
+    int[] slots = new int[16];
+    int[] deltas = new int[16];
+    int count = 0;
+    int slot;
+    while ((slot = nextDirty(end)) >= 0) {
+      int delta = unflushed.getAndSet(slot, 0);
+      if (delta == 0) {
+        continue;
+      }
+      if (count == slots.length) {
+        slots = Arrays.copyOf(slots, count * 2);
+        deltas = Arrays.copyOf(deltas, count * 2);
+      }
+      slots[count] = slot;
+      deltas[count] = delta;
+      count++;
+    }
+    if (count == 0) {
+      return;
+    }
+
+    try {
+      conn.setAutoCommit(false);
+      adjustStatement.clearBatch();
+      for (int i = 0; i < count; i++) {
+        adjustStatement.setInt(1, deltas[i]);
+        adjustStatement.setInt(2, keys[slots[i]]);
+        adjustStatement.addBatch();
+      }
+      adjustStatement.executeBatch();
+      conn.commit();
+      for (int i = 0; i < count; i++) {
+        stored[slots[i]] += deltas[i];
+      }
+      FLUSHES.increment();
+      ROWS_FLUSHED.add(count);
+    } catch (SQLException e) {
+      try {
+        conn.rollback();
+      } catch (SQLException ignored) {}
+      for (int i = 0; i < count; i++) {
+        record(slots[i], deltas[i]);
+      }
+      FLUSH_FAILURES.increment();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Puts every flight back to its full capacity and drops the changes not yet flushed, for when
+   * the tables are cleared.
+   */
+  public synchronized void reset()
+  {
+    // a slot still being queued keeps its mark, and the next flush finds nothing to write for it
+    int end = dirtyTail.get();
+    while (nextDirty(end) >= 0) {
+      // its changes are dropped below
+    }
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != EMPTY) {
+        unflushed.set(slot, 0);
+        seats.set(slot, capacity[slot]);
+        stored[slot] = capacity[slot];
+      }
+    }
+  }
+
+  /**
+   * Fetches the rows of Capacities changed since the last refresh and moves the seats of each
+   * flight by however much someone else changed it. Runs under the same lock as {@link #flush},
+   * so a flush never lands between reading a row and comparing it with what was stored.
+   */
+  public synchronized void refresh() throws SQLException
+  {
+    long start = System.nanoTime();
+    REFRESH_LAG.record(start - refreshedAt);
+
+    long horizon = since;
+    changesStatement.clearParameters();
+    changesStatement.setLong(1, since);
+    ResultSet rows = changesStatement.executeQuery();
+    try {
+      while (rows.next()) {
+        horizon = rows.getLong("horizon");
+        int fid = rows.getInt("fid");
+        if (rows.wasNull()) {
+          continue;
+        }
+        REFRESH_ROWS.increment();
+        int slot = slot(fid);
+        if (slot < 0) {
+          continue;
+        }
+        int change = rows.getInt("capacity") - stored[slot];
+        if (change != 0) {
+          stored[slot] += change;
+          seats.addAndGet(slot, change);
+          REFRESH_SEATS.add(Math.abs(change));
+        }
+      }
+    } finally {
+      rows.close();
+    }
+    since = horizon;
+    refreshedAt = start;
+  }
+
+  /**
+   * Stops the background thread, writes what is left and closes the connection.
+   */
+  public void close() throws SQLException
+  {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      flush();
+    } finally {
+      conn.close();
+    }
+  }
+}
@@ -0,0 +1,35 @@
+import java.util.List;
+
+/**
+ * State of one client talking to a {@link Query}: who is logged in and what their last search
+ * offered for booking. The Query and its connections are shared, so a process can serve many
+ * sessions at the same time.
+ */
+public class Session
+{
+  // Logged In User
+  String username; // customer username is unique
+  boolean isLoggedIn = false;
+  int possibleBookingCount = 0;
+  Query.Flight[] bookingOptions;
+
+  // The user's reservations as this session last read them (null until it needs them), and how
+  // many changes to them it had seen then; see Query.transaction_reservations
+  List<FlightStore.Reservation> reservations;
+  long reservationChangesSeen;
+
+  // Commands are split here; its buffers are kept from one command to the next
+  final CommandLine commandLine = new CommandLine();
+
+  // Responses are put together here, so a long one doesn't grow a new buffer every time
+  private final StringBuilder response = new StringBuilder(1024);
+
+  /**
+   * @return this session's response buffer, emptied; only good until the next call
+   */
+  StringBuilder responseBuffer()
+  {
+    response.setLength(0);
+    return response;
+  }
+}
@@ -0,0 +1,1032 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.NClob;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLType;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Optional tracing of the prepared statements of {@link JdbcFlightStore}. Each statement is
+ * wrapped in a delegating statement that, for the commands picked for tracing, remembers the
+ * parameters bound to it, times every execution, counts the round trips the command makes and
+ * writes any execution slower than the threshold to the slow-query log, with its parameters.
+ *
+ * Only a sample of the commands is traced, flightservice.trace_sample_rate of them; the others
+ * pay for one more call and a check of the sample flag. A command is picked as a whole, so its
+ * round trip count is complete.
+ */
+public class StatementTracer
+{
+  /**
+   * What one connection's statements are doing for the command that holds the connection.
+   * Only that command's thread touches it.
+   */
+  class Trace
+  {
+    private String command;
+    private boolean sampled = false;
+    private int roundTrips = 0;
+
+    // counts the commands begun, so a statement can tell whether what it has bound is from this one
+    private int generation = 0;
+
+    /**
+     * Starts tracing {@code command}, if it is picked.
+     */
+    void begin(String command)
+    {
+      this.command = command;
+      this.sampled = sampleRate >= 1 || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate);
+      this.roundTrips = 0;
+      this.generation++;
+    }
+
+    /**
+     * Counts the round trips of the command, if it was picked.
+     */
+    void end()
+    {
+      if (sampled) {
+        Metrics.counter("trace." + command + ".commands").increment();
+        Metrics.counter("trace." + command + ".round_trips").add(roundTrips);
+      }
+      sampled = false;
+      command = null;
+    }
+  }
+
+  // one per statement, holding what is bound to it while its command is traced, and the rows added to its batch.
+  // Each method calls the statement it wraps directly; binds are only recorded, and executions only timed, while the
+  // command is sampled, so the others box and allocate nothing. What was recorded for an earlier command is dropped
+  // the first time this one touches it, so a slow execution never logs another command's parameters
+  private class TracedStatement implements PreparedStatement
+  {
+    private final String name;
+    private final PreparedStatement target;
+    private final Trace trace;
+    private final int[] hidden;
+    private Object[] parameters = new Object[8];
+    private final List<Object[]> batchRows = new ArrayList<Object[]>();
+
+    // the command parameters and batchRows were recorded for
+    private int recordedIn = -1;
+
+    TracedStatement(String name, PreparedStatement target, Trace trace, int[] hidden)
+    {
+      this.name = name;
+      this.target = target;
+      this.trace = trace;
+      this.hidden = hidden;
+    }
+
+    // when an execution started, if it is timed
+    private long start()
+    {
+      return trace.sampled ? System.nanoTime() : 0;
+    }
+
+    private void finish(long start, boolean batch)
+    {
+      if (!trace.sampled) {
+        return;
+      }
+      long nanos = System.nanoTime() - start;
+      trace.roundTrips++;
+      recording();
+      if (nanos >= slowNanos) {
+        if (!batch) {
+          logSlow(trace.command, name, nanos, Arrays.toString(bound()));
+        } else {
+          StringBuilder rows = new StringBuilder(batchRows.size() + " rows");
+          for (Object[] row : batchRows) {
+            rows.append(' ').append(Arrays.toString(row));
+          }
+          logSlow(trace.command, name, nanos, rows.toString());
+        }
+      }
+      if (batch) {
+        batchRows.clear();
+      }
+    }
+
+    // drops what was recorded for an earlier command
+    private void recording()
+    {
+      if (recordedIn != trace.generation) {
+        Arrays.fill(parameters, null);
+        batchRows.clear();
+        recordedIn = trace.generation;
+      }
+    }
+
+    // the parameters bound so far, up to the last one set
+    private Object[] bound()
+    {
+      int count = parameters.length;
+      while (count > 0 && parameters[count - 1] == null) {
+        count--;
+      }
+      return Arrays.copyOf(parameters, count);
+    }
+
+    private void bind(int index, Object value)
+    {
+      recording();
+      if (index < 1) {
+        return;
+      }
+      if (index > parameters.length) {
+        parameters = Arrays.copyOf(parameters, Math.max(index, parameters.length * 2));
+      }
+      parameters[index - 1] = isHidden(index) ? "***" : value;
+    }
+
+    private boolean isHidden(int index)
+    {
+      for (int h : hidden) {
+        if (h == index) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    public ResultSet executeQuery() throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeQuery();
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public int executeUpdate() throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeUpdate();
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public long executeLargeUpdate() throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeLargeUpdate();
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public boolean execute() throws SQLException
+    {
+      long start = start();
+      try {
+        return target.execute();
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public int[] executeBatch() throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeBatch();
+      } finally {
+        finish(start, true);
+      }
+    }
+
+    public long[] executeLargeBatch() throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeLargeBatch();
+      } finally {
+        finish(start, true);
+      }
+    }
+
+    public ResultSet executeQuery(String sql) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeQuery(sql);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public int executeUpdate(String sql) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeUpdate(sql);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeUpdate(sql, autoGeneratedKeys);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeUpdate(sql, columnIndexes);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeUpdate(sql, columnNames);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public long executeLargeUpdate(String sql) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeLargeUpdate(sql);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeLargeUpdate(sql, autoGeneratedKeys);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeLargeUpdate(sql, columnIndexes);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.executeLargeUpdate(sql, columnNames);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public boolean execute(String sql) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.execute(sql);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.execute(sql, autoGeneratedKeys);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.execute(sql, columnIndexes);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public boolean execute(String sql, String[] columnNames) throws SQLException
+    {
+      long start = start();
+      try {
+        return target.execute(sql, columnNames);
+      } finally {
+        finish(start, false);
+      }
+    }
+
+    public void setNull(int parameterIndex, int sqlType) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, "NULL");
+      }
+      target.setNull(parameterIndex, sqlType);
+    }
+
+    public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, "NULL");
+      }
+      target.setNull(parameterIndex, sqlType, typeName);
+    }
+
+    public void setBoolean(int parameterIndex, boolean x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setBoolean(parameterIndex, x);
+    }
+
+    public void setByte(int parameterIndex, byte x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setByte(parameterIndex, x);
+    }
+
+    public void setShort(int parameterIndex, short x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setShort(parameterIndex, x);
+    }
+
+    public void setInt(int parameterIndex, int x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setInt(parameterIndex, x);
+    }
+
+    public void setLong(int parameterIndex, long x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setLong(parameterIndex, x);
+    }
+
+    public void setFloat(int parameterIndex, float x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setFloat(parameterIndex, x);
+    }
+
+    public void setDouble(int parameterIndex, double x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setDouble(parameterIndex, x);
+    }
+
+    public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setBigDecimal(parameterIndex, x);
+    }
+
+    public void setString(int parameterIndex, String x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setString(parameterIndex, x);
+    }
+
+    public void setNString(int parameterIndex, String value) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, value);
+      }
+      target.setNString(parameterIndex, value);
+    }
+
+    public void setBytes(int parameterIndex, byte[] x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setBytes(parameterIndex, x);
+    }
+
+    public void setDate(int parameterIndex, java.sql.Date x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setDate(parameterIndex, x);
+    }
+
+    public void setDate(int parameterIndex, java.sql.Date x, Calendar cal) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setDate(parameterIndex, x, cal);
+    }
+
+    public void setTime(int parameterIndex, Time x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setTime(parameterIndex, x);
+    }
+
+    public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setTime(parameterIndex, x, cal);
+    }
+
+    public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setTimestamp(parameterIndex, x);
+    }
+
+    public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setTimestamp(parameterIndex, x, cal);
+    }
+
+    public void setObject(int parameterIndex, Object x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setObject(parameterIndex, x);
+    }
+
+    public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setObject(parameterIndex, x, targetSqlType);
+    }
+
+    public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setObject(parameterIndex, x, targetSqlType);
+    }
+
+    public void setObject(int parameterIndex, Object x, SQLType targetSqlType, int scaleOrLength) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setAsciiStream(parameterIndex, x);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setAsciiStream(parameterIndex, x, length);
+    }
+
+    public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setAsciiStream(parameterIndex, x, length);
+    }
+
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setUnicodeStream(parameterIndex, x, length);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setBinaryStream(parameterIndex, x);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setBinaryStream(parameterIndex, x, length);
+    }
+
+    public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setBinaryStream(parameterIndex, x, length);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, reader);
+      }
+      target.setCharacterStream(parameterIndex, reader);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, reader);
+      }
+      target.setCharacterStream(parameterIndex, reader, length);
+    }
+
+    public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, reader);
+      }
+      target.setCharacterStream(parameterIndex, reader, length);
+    }
+
+    public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, value);
+      }
+      target.setNCharacterStream(parameterIndex, value);
+    }
+
+    public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, value);
+      }
+      target.setNCharacterStream(parameterIndex, value, length);
+    }
+
+    public void setRef(int parameterIndex, Ref x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setRef(parameterIndex, x);
+    }
+
+    public void setBlob(int parameterIndex, Blob x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setBlob(parameterIndex, x);
+    }
+
+    public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, inputStream);
+      }
+      target.setBlob(parameterIndex, inputStream);
+    }
+
+    public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, inputStream);
+      }
+      target.setBlob(parameterIndex, inputStream, length);
+    }
+
+    public void setClob(int parameterIndex, Clob x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setClob(parameterIndex, x);
+    }
+
+    public void setClob(int parameterIndex, Reader reader) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, reader);
+      }
+      target.setClob(parameterIndex, reader);
+    }
+
+    public void setClob(int parameterIndex, Reader reader, long length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, reader);
+      }
+      target.setClob(parameterIndex, reader, length);
+    }
+
+    public void setNClob(int parameterIndex, NClob value) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, value);
+      }
+      target.setNClob(parameterIndex, value);
+    }
+
+    public void setNClob(int parameterIndex, Reader reader) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, reader);
+      }
+      target.setNClob(parameterIndex, reader);
+    }
+
+    public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, reader);
+      }
+      target.setNClob(parameterIndex, reader, length);
+    }
+
+    public void setArray(int parameterIndex, Array x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setArray(parameterIndex, x);
+    }
+
+    public void setURL(int parameterIndex, URL x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setURL(parameterIndex, x);
+    }
+
+    public void setRowId(int parameterIndex, RowId x) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, x);
+      }
+      target.setRowId(parameterIndex, x);
+    }
+
+    public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException
+    {
+      if (trace.sampled) {
+        bind(parameterIndex, xmlObject);
+      }
+      target.setSQLXML(parameterIndex, xmlObject);
+    }
+
+    public void clearParameters() throws SQLException
+    {
+      if (trace.sampled) {
+        recording();
+        Arrays.fill(parameters, null);
+      }
+      target.clearParameters();
+    }
+
+    public void addBatch() throws SQLException
+    {
+      if (trace.sampled) {
+        recording();
+        batchRows.add(bound());
+      }
+      target.addBatch();
+    }
+
+    public void addBatch(String sql) throws SQLException
+    {
+      target.addBatch(sql);
+    }
+
+    public void clearBatch() throws SQLException
+    {
+      if (trace.sampled) {
+        recording();
+        batchRows.clear();
+      }
+      target.clearBatch();
+    }
+
+    public ResultSetMetaData getMetaData() throws SQLException
+    {
+      return target.getMetaData();
+    }
+
+    public ParameterMetaData getParameterMetaData() throws SQLException
+    {
+      return target.getParameterMetaData();
+    }
+
+    public ResultSet getResultSet() throws SQLException
+    {
+      return target.getResultSet();
+    }
+
+    public int getUpdateCount() throws SQLException
+    {
+      return target.getUpdateCount();
+    }
+
+    public long getLargeUpdateCount() throws SQLException
+    {
+      return target.getLargeUpdateCount();
+    }
+
+    public boolean getMoreResults() throws SQLException
+    {
+      return target.getMoreResults();
+    }
+
+    public boolean getMoreResults(int current) throws SQLException
+    {
+      return target.getMoreResults(current);
+    }
+
+    public ResultSet getGeneratedKeys() throws SQLException
+    {
+      return target.getGeneratedKeys();
+    }
+
+    public void setFetchSize(int rows) throws SQLException
+    {
+      target.setFetchSize(rows);
+    }
+
+    public int getFetchSize() throws SQLException
+    {
+      return target.getFetchSize();
+    }
+
+    public void setFetchDirection(int direction) throws SQLException
+    {
+      target.setFetchDirection(direction);
+    }
+
+    public int getFetchDirection() throws SQLException
+    {
+      return target.getFetchDirection();
+    }
+
+    public void setMaxRows(int max) throws SQLException
+    {
+      target.setMaxRows(max);
+    }
+
+    public int getMaxRows() throws SQLException
+    {
+      return target.getMaxRows();
+    }
+
+    public void setLargeMaxRows(long max) throws SQLException
+    {
+      target.setLargeMaxRows(max);
+    }
+
+    public long getLargeMaxRows() throws SQLException
+    {
+      return target.getLargeMaxRows();
+    }
+
+    public void setMaxFieldSize(int max) throws SQLException
+    {
+      target.setMaxFieldSize(max);
+    }
+
+    public int getMaxFieldSize() throws SQLException
+    {
+      return target.getMaxFieldSize();
+    }
+
+    public void setQueryTimeout(int seconds) throws SQLException
+    {
+      target.setQueryTimeout(seconds);
+    }
+
+    public int getQueryTimeout() throws SQLException
+    {
+      return target.getQueryTimeout();
+    }
+
+    public void setEscapeProcessing(boolean enable) throws SQLException
+    {
+      target.setEscapeProcessing(enable);
+    }
+
+    public void setCursorName(String name) throws SQLException
+    {
+      target.setCursorName(name);
+    }
+
+    public int getResultSetConcurrency() throws SQLException
+    {
+      return target.getResultSetConcurrency();
+    }
+
+    public int getResultSetType() throws SQLException
+    {
+      return target.getResultSetType();
+    }
+
+    public int getResultSetHoldability() throws SQLException
+    {
+      return target.getResultSetHoldability();
+    }
+
+    public SQLWarning getWarnings() throws SQLException
+    {
+      return target.getWarnings();
+    }
+
+    public void clearWarnings() throws SQLException
+    {
+      target.clearWarnings();
+    }
+
+    public Connection getConnection() throws SQLException
+    {
+      return target.getConnection();
+    }
+
+    public void setPoolable(boolean poolable) throws SQLException
+    {
+      target.setPoolable(poolable);
+    }
+
+    public boolean isPoolable() throws SQLException
+    {
+      return target.isPoolable();
+    }
+
+    public void closeOnCompletion() throws SQLException
+    {
+      target.closeOnCompletion();
+    }
+
+    public boolean isCloseOnCompletion() throws SQLException
+    {
+      return target.isCloseOnCompletion();
+    }
+
+    public void cancel() throws SQLException
+    {
+      target.cancel();
+    }
+
+    public void close() throws SQLException
+    {
+      target.close();
+    }
+
+    public boolean isClosed() throws SQLException
+    {
+      return target.isClosed();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException
+    {
+      return target.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException
+    {
+      return target.isWrapperFor(iface);
+    }
+  }
+
+  private final double sampleRate;
+  private final long slowNanos;
+  private final PrintWriter slowLog;
+
+  /**
+   * @param sampleRate share of the commands traced, from 0 to 1
+   * @param slowMillis executions that take at least this long are logged
+   * @param slowLogPath file the slow executions are appended to
+   */
+  public StatementTracer(double sampleRate, long slowMillis, String slowLogPath) throws IOException
+  {
+    this.sampleRate = sampleRate;
+    this.slowNanos = slowMillis * 1000000L;
+    this.slowLog = new PrintWriter(new FileWriter(slowLogPath, true));
+  }
+
+  /**
+   * @return a trace for the statements of one connection
+   */
+  Trace newTrace()
+  {
+    return new Trace();
+  }
+
+  /**
+   * @param hidden parameters, by index, that are logged as *** because they hold passwords
+   * @return {@code statement}, traced under {@code name} whenever {@code trace} is sampled
+   */
+  PreparedStatement wrap(String name, PreparedStatement statement, Trace trace, int... hidden)
+  {
+    return new TracedStatement(name, statement, trace, hidden);
+  }
+
+  private synchronized void logSlow(String command, String statement, long nanos, String parameters)
+  {
+    slowLog.println(new Date() + " " + String.format("%.1f", nanos / 1e6) + " ms " + command + " " + statement
+                    + " " + parameters);
+    slowLog.flush();
+  }
+
+  public synchronized void close()
+  {
+    slowLog.close();
+  }
+}
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives every distinct string an int ID, counting up from 0 in the order they are first added,
+ * and keeps one copy of each, so a table of many rows naming the same few cities and carriers
+ * stores a small int per row and every name once.
+ *
+ * Strings can also be looked up the way SQL Server's default collation compares them, ignoring
+ * case and trailing spaces, while the name kept for each ID is the string as it was added.
+ *
+ * Not thread safe while strings are being added; any number of threads can look strings up once
+ * it is no longer being added to.
+ */
+public class StringDictionary
+{
+  private final Map<String, Integer> ids = new HashMap<String, Integer>();
+  private final List<String> names = new ArrayList<String>();
+
+  // fold(s) -> the first ID added with that folded form
+  private final Map<String, Integer> foldedIds = new HashMap<String, Integer>();
+
+  /**
+   * @return {@code s} without trailing spaces, in lower case: equal for any two strings that
+   * SQL Server's default collation takes to be equal
+   */
+  public static String fold(String s)
+  {
+    int end = s.length();
+    while (end > 0 && s.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return s.substring(0, end).toLowerCase();
+  }
+
+  /**
+   * @return the ID of {@code s}, which is given one if it doesn't have one yet
+   */
+  public int add(String s)
+  {
+    Integer id = ids.get(s);
+    if (id == null) {
+      id = names.size();
+      ids.put(s, id);
+      names.add(s);
+      String folded = fold(s);
+      if (!foldedIds.containsKey(folded)) {
+        foldedIds.put(folded, id);
+      }
+    }
+    return id;
+  }
+
+  /**
+   * @return the ID of {@code s}, or -1 if it was never added
+   */
+  public int id(String s)
+  {
+    Integer id = ids.get(s);
+    return (id == null) ? -1 : id;
+  }
+
+  /**
+   * @return the ID of the first string added that is equal to {@code s} ignoring case and
+   * trailing spaces, or -1 if there is none
+   */
+  public int idIgnoringCase(String s)
+  {
+    Integer id = foldedIds.get(fold(s));
+    return (id == null) ? -1 : id;
+  }
+
+  public String name(int id)
+  {
+    return names.get(id);
+  }
+
+  public int size()
+  {
+    return names.size();
+  }
+}
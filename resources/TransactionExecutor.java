@@ -0,0 +1,255 @@
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs a unit of work inside a transaction and runs it again when the database gives up on it
+ * for a reason that a second attempt can fix: the session was picked as a deadlock victim, a
+ * lock wait timed out, or Azure SQL reported a transient fault.
+ *
+ * The work begins its own transaction, so it can choose the isolation level, and may end it
+ * early with a commit or a rollback of its own. Whatever is still open when the work returns is
+ * committed; whatever is still open when it throws is rolled back before the next attempt.
+ *
+ * Every attempt takes a connection of its own and gives it back before waiting for the next
+ * one, so a retry never holds a connection that other sessions could be using. After a
+ * transient Azure fault, which usually means the connection itself is gone, the connection is
+ * discarded rather than given back, and the next attempt runs on a new one.
+ *
+ * Attempts are spaced with exponential backoff and full jitter, so that the sessions that
+ * deadlocked with each other don't collide again on the retry. Retries are also drawn from a
+ * budget shared by every caller: each first attempt earns {@code budgetRatio} of a retry, and a
+ * retry is only made when a whole one has been earned. Under a burst of failures the executor
+ * stops retrying instead of doubling the load on a database that is already struggling.
+ *
+ * How often that happens is counted under transaction.* in {@link Metrics}, for the stats
+ * command and the metrics file.
+ */
+public class TransactionExecutor
+{
+  // SQL Server: transaction was deadlocked and chosen as the victim
+  static final int DEADLOCK_VICTIM = 1205;
+
+  // SQL Server: lock request timed out
+  static final int LOCK_TIMEOUT = 1222;
+
+  // Azure SQL: service busy, database unavailable, and the elastic pool variants of the same
+  private static final int[] TRANSIENT_ERRORS = { 40501, 40613, 49918, 49919, 49920 };
+
+  // SQLState for a serialization failure, which covers deadlock victims on most drivers
+  private static final String SERIALIZATION_FAILURE = "40001";
+
+  // calls to run; attempts made after the first one; transactions that succeeded on a retry, that still failed with
+  // a retryable error on their last attempt, and retries not made because the budget had run dry
+  private static final Metrics.Counter TRANSACTIONS = Metrics.counter("transaction.runs");
+  private static final Metrics.Counter RETRIES = Metrics.counter("transaction.retries");
+  private static final Metrics.Counter RECOVERED = Metrics.counter("transaction.recovered");
+  private static final Metrics.Counter EXHAUSTED = Metrics.counter("transaction.exhausted");
+  private static final Metrics.Counter BUDGET_DENIED = Metrics.counter("transaction.budget_denied");
+
+  /**
+   * The statements of one transaction, run against a single connection.
+   */
+  public interface Work<T, C extends Transactional>
+  {
+    T run(C db) throws SQLException;
+  }
+
+  /**
+   * Where each attempt gets its connection from.
+   */
+  public interface Connections<C extends Transactional>
+  {
+    C acquire() throws SQLException;
+
+    void release(C db);
+
+    /**
+     * Takes back a connection that failed in a way that leaves it unusable, and puts a working
+     * one in its place.
+     */
+    void discard(C db);
+  }
+
+  /**
+   * What the executor needs from the connection the work runs on.
+   */
+  public interface Transactional
+  {
+    boolean inTransaction();
+
+    void commitTransaction() throws SQLException;
+
+    void rollbackTransaction() throws SQLException;
+  }
+
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final double budgetRatio;
+  private final double maxBudget;
+
+  // retries that may still be made, earned by first attempts
+  private double budget;
+
+
+  /**
+   * @param maxAttempts times the work is run at most, including the first one
+   * @param baseDelayMillis upper bound of the wait before the first retry; it doubles on each one after
+   * @param maxDelayMillis upper bound of any single wait
+   * @param budgetRatio retries earned by each first attempt
+   * @param maxBudget retries that may be saved up, and the ones available at startup
+   */
+  public TransactionExecutor(int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                             double budgetRatio, double maxBudget)
+  {
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.baseDelayMillis = Math.max(0, baseDelayMillis);
+    this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    this.budgetRatio = Math.max(0, budgetRatio);
+    this.maxBudget = Math.max(0, maxBudget);
+    this.budget = this.maxBudget;
+  }
+
+  /**
+   * Runs {@code work} on a connection from {@code connections} until it succeeds, fails for a
+   * reason a retry can't fix, runs out of attempts, or the retry budget runs dry.
+   *
+   * @throws SQLException the failure of the last attempt
+   */
+  public <T, C extends Transactional> T run(Connections<C> connections, Work<T, C> work) throws SQLException
+  {
+    TRANSACTIONS.increment();
+    earn();
+
+    for (int attempt = 1; ; attempt++) {
+      SQLException failure;
+      boolean broken = false;
+      C db = connections.acquire();
+      try {
+        T result = work.run(db);
+        if (db.inTransaction()) {
+          db.commitTransaction();
+        }
+        if (attempt > 1) {
+          RECOVERED.increment();
+        }
+        return result;
+      } catch (SQLException e) {
+        rollbackQuietly(db);
+        if (!isRetryable(e)) {
+          throw e;
+        }
+        if (attempt >= maxAttempts) {
+          EXHAUSTED.increment();
+          throw e;
+        }
+        if (!spend()) {
+          BUDGET_DENIED.increment();
+          throw e;
+        }
+        RETRIES.increment();
+        failure = e;
+        broken = isConnectionFault(e);
+      } catch (RuntimeException e) {
+        rollbackQuietly(db);
+        throw e;
+      } finally {
+        if (broken) {
+          connections.discard(db);
+        } else {
+          connections.release(db);
+        }
+      }
+      backoff(attempt, failure);
+    }
+  }
+
+  /**
+   * @return true if {@code e}, or any exception chained to it, is one that running the same
+   * transaction again may get past
+   */
+  public static boolean isRetryable(SQLException e)
+  {
+    for (Throwable t = e; t != null; t = (t.getCause() != t) ? t.getCause() : null) {
+      if (t instanceof SQLException) {
+        for (SQLException s = (SQLException) t; s != null; s = s.getNextException()) {
+          if (isRetryableCode(s.getErrorCode()) || SERIALIZATION_FAILURE.equals(s.getSQLState())) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if {@code e} is a transient Azure fault, after which the connection it came from
+   * should not be used again
+   */
+  public static boolean isConnectionFault(SQLException e)
+  {
+    for (Throwable t = e; t != null; t = (t.getCause() != t) ? t.getCause() : null) {
+      if (t instanceof SQLException) {
+        for (SQLException s = (SQLException) t; s != null; s = s.getNextException()) {
+          for (int code : TRANSIENT_ERRORS) {
+            if (s.getErrorCode() == code) {
+              return true;
+            }
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isRetryableCode(int errorCode)
+  {
+    if (errorCode == DEADLOCK_VICTIM || errorCode == LOCK_TIMEOUT) {
+      return true;
+    }
+    for (int code : TRANSIENT_ERRORS) {
+      if (errorCode == code) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the server has usually rolled back a deadlock victim already, in which case this fails harmlessly
+  private static void rollbackQuietly(Transactional db)
+  {
+    if (db.inTransaction()) {
+      try {
+        db.rollbackTransaction();
+      } catch (SQLException e) {}
+    }
+  }
+
+  private void backoff(int attempt, SQLException cause) throws SQLException
+  {
+    long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+    if (ceiling <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw cause;
+    }
+  }
+
+  private synchronized void earn()
+  {
+    budget = Math.min(maxBudget, budget + budgetRatio);
+  }
+
+  private synchronized boolean spend()
+  {
+    if (budget < 1) {
+      return false;
+    }
+    budget -= 1;
+    return true;
+  }
+}
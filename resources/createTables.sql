@@ -17,3 +17,23 @@
 --         capacity int, 
 --         price int            -- in $             
 --         )
+
+-- Next reservation ID to lease, shared by every process booking against this database.
+-- ReservationIdAllocator takes IDs from it in blocks; clearTables() sets it back to 1.
+CREATE TABLE ReservationIdSequence (
+  next_id int NOT NULL
+);
+INSERT INTO ReservationIdSequence VALUES (1);
+
+-- Bumped by SQL Server on every change to a row of Capacities, so that a seat inventory
+-- (flightservice.capacity_refresh_ms) can fetch just the rows changed since it last looked.
+ALTER TABLE Capacities ADD row_version rowversion;
+CREATE INDEX Capacities_row_version ON Capacities (row_version) INCLUDE (fid, capacity);
+
+-- Lets "reservations after <id> limit <n>" seek straight to the next page of a user's
+-- reservations instead of reading all of them.
+CREATE INDEX Reservations_username ON Reservations (username, reservation_id);
+
+-- Lets the same-day check of a booking lock only the key range of the user's day, so bookings
+-- by other users, and by the same user for other days, don't wait on it.
+CREATE INDEX Reservations_username_date ON Reservations (username, reservationDate);
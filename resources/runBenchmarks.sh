@@ -0,0 +1,28 @@
+#!/bin/bash
+
+if [ "$#" -lt 3 ]; then
+  echo "Usage: runBenchmarks.sh <source folder> <benchmark folder> <output folder> [JMH options]"
+  echo "Compiles java files in <source folder> and <benchmark folder> and put the class files in <output folder>,"
+  echo "then runs every benchmark, or the ones matching the JMH options, with the GC profiler"
+  echo "Needs the JMH jars listed below in lib/"
+  echo "WARNING: output folder is initially deleted and recreated!!!"
+  exit 1
+fi
+
+src=$1
+bench=$2
+out=$3
+shift 3
+
+jmh=lib/jmh-core-1.37.jar:lib/jopt-simple-5.0.4.jar:lib/commons-math3-3.6.1.jar
+
+rm -rf $out
+mkdir $out
+
+echo "compiling from " $src " and " $bench
+javac -cp $jmh:lib/jmh-generator-annprocess-1.37.jar \
+  -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+  -d $out $src/*.java $bench/*.java $bench/bench/*.java || exit 1
+
+# throughput and allocation rate of every benchmark, kept in JSON to compare against the last release
+java -cp $jmh:$out org.openjdk.jmh.Main -prof gc -rf json -rff $out/jmh-result.json "$@"